@@ -0,0 +1,295 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stamps one set of strokes onto many images without a view: decode, draw, encode, in parallel.
+ *
+ * The strokes are given in the coordinates of a reference image (normally the document they were drawn
+ * on) and are scaled to each decoded image. Work runs on a fixed pool of worker threads. A memory
+ * semaphore limits how many images are in flight at once, so a long batch cannot exceed the memory cap
+ * however fast files are submitted.
+ */
+public class BatchAnnotator {
+
+    private static final String TAG = "BatchAnnotator";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Hands files to the worker pool one at a time, blocking whenever the memory cap is reached
+    private static final ExecutorService SUBMIT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final ExecutorService workers;
+    private final int threadCount;
+    private final long memoryCapBytes;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public interface Callback {
+        void onImageAnnotated(File source, File output, int completed, int total);
+
+        void onImageFailed(File source, Exception e);
+
+        void onBatchFinished(BatchStats stats);
+    }
+
+    public static class BatchStats {
+        public int total;
+        public int succeeded;
+        public int failed;
+        public long millis;
+        public long peakBytes; // Most bitmap memory actually held by the images in flight at any time
+        public int maxConcurrentImages;
+
+        public float getImagesPerSecond() {
+            return millis > 0 ? succeeded * 1000f / millis : 0f;
+        }
+
+        @Override
+        public String toString() {
+            return succeeded + "/" + total + " images in " + millis + "ms ("
+                    + String.format(Locale.US, "%.1f", getImagesPerSecond()) + "/s) failed=" + failed
+                    + " peak=" + (peakBytes / 1024) + "KB concurrency=" + maxConcurrentImages;
+        }
+    }
+
+    public static class BatchTask {
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        public void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(true); // Wakes the submitter if it is waiting for memory
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    public BatchAnnotator(int threadCount, long memoryCapBytes) {
+        this.threadCount = Math.max(1, threadCount);
+        this.memoryCapBytes = memoryCapBytes;
+        this.workers = Executors.newFixedThreadPool(this.threadCount);
+    }
+
+    // One worker per core but one, leaving a core for the UI, with a quarter of the heap for images
+    public static BatchAnnotator createDefault() {
+        return new BatchAnnotator(Runtime.getRuntime().availableProcessors() - 1,
+                Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    // How many images of at most maxWidth x maxHeight fit in the memory cap at once, never fewer than one
+    public static int maxConcurrentImages(long memoryCapBytes, int maxWidth, int maxHeight, int threadCount) {
+        long perImage = estimateBytes(maxWidth, maxHeight);
+        return (int) Math.max(1, Math.min(threadCount, memoryCapBytes / perImage));
+    }
+
+    /**
+     * Annotate every image into outputDirectory and report progress on the main thread.
+     *
+     * Images are decoded to fit maxWidth x maxHeight. The strokes are only read, never modified.
+     */
+    public BatchTask annotate(final List<File> images, List<Stroke> strokes, final int referenceWidth,
+                              final int referenceHeight, final int maxWidth, final int maxHeight,
+                              final File outputDirectory, final BitmapExporter.Format format, final int quality,
+                              final Callback callback) {
+        // Only what is visible now; erasers and the strokes they removed are left out
+        final List<Stroke> strokeSet = new ArrayList<>(strokes.size());
+        for (Stroke stroke : strokes) {
+            if (!stroke.isEraser() && !stroke.isErased()) {
+                strokeSet.add(stroke);
+            }
+        }
+        final BatchTask task = new BatchTask();
+        task.future = SUBMIT_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                runBatch(images, strokeSet, referenceWidth, referenceHeight, maxWidth, maxHeight,
+                        outputDirectory, format, quality, task, callback);
+            }
+        });
+        return task;
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private void runBatch(List<File> images, final List<Stroke> strokes, final int referenceWidth,
+                          final int referenceHeight, final int maxWidth, final int maxHeight,
+                          final File outputDirectory, final BitmapExporter.Format format, final int quality,
+                          final BatchTask task, final Callback callback) {
+        final long start = SystemClock.elapsedRealtime();
+        final int total = images.size();
+        final int concurrency = maxConcurrentImages(memoryCapBytes, maxWidth, maxHeight, threadCount);
+        final Semaphore slots = new Semaphore(concurrency);
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong bytesInFlight = new AtomicLong();
+        final AtomicLong peakBytes = new AtomicLong();
+        outputDirectory.mkdirs();
+
+        int submitted = 0;
+        try {
+            for (final File image : images) {
+                if (task.isCancelled()) {
+                    break;
+                }
+                slots.acquire(); // Back-pressure: wait until an image in flight has been written
+                submitted++;
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (task.isCancelled()) {
+                                return;
+                            }
+                            final File output = annotateOne(image, strokes, referenceWidth, referenceHeight,
+                                    maxWidth, maxHeight, outputDirectory, format, quality, bytesInFlight, peakBytes);
+                            final int completed = succeeded.incrementAndGet() + failed.get();
+                            mainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (!task.isCancelled()) {
+                                        callback.onImageAnnotated(image, output, completed, total);
+                                    }
+                                }
+                            });
+                        } catch (final IOException | RuntimeException e) {
+                            failed.incrementAndGet();
+                            Log.e(TAG, "Failed to annotate " + image, e);
+                            mainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (!task.isCancelled()) {
+                                        callback.onImageFailed(image, e);
+                                    }
+                                }
+                            });
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+            // Wait for the last images by taking back every slot
+            slots.acquire(concurrency);
+        } catch (InterruptedException e) {
+            return; // Cancelled while waiting; images already in flight finish on their own
+        }
+
+        final BatchStats stats = new BatchStats();
+        stats.total = total;
+        stats.succeeded = succeeded.get();
+        stats.failed = failed.get() + (total - submitted);
+        stats.millis = SystemClock.elapsedRealtime() - start;
+        stats.peakBytes = peakBytes.get();
+        stats.maxConcurrentImages = concurrency;
+        Log.d(TAG, "Batch finished: " + stats);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!task.isCancelled()) {
+                    callback.onBatchFinished(stats);
+                }
+            }
+        });
+    }
+
+    // Adds the bitmap memory this image really holds to bytesInFlight while it is held, pooled bitmaps
+    // larger than the estimate included, and keeps peakBytes up to date
+    private static File annotateOne(File image, List<Stroke> strokes, int referenceWidth, int referenceHeight,
+                                    int maxWidth, int maxHeight, File outputDirectory,
+                                    BitmapExporter.Format format, int quality, AtomicLong bytesInFlight,
+                                    AtomicLong peakBytes) throws IOException {
+        BitmapPool pool = BitmapPool.getInstance();
+        BitmapLoader.DecodeStats decodeStats = new BitmapLoader.DecodeStats();
+        Bitmap bitmap = BitmapLoader.decode(image.getPath(), maxWidth, maxHeight, decodeStats);
+        // The decode may have held two bitmaps at once, e.g. while turning the image upright
+        long held = decodeStats.peakBytes;
+        updatePeak(peakBytes, bytesInFlight.addAndGet(held));
+        try {
+            held = adjust(bytesInFlight, held, bitmap.getAllocationByteCount());
+            if (!bitmap.isMutable()) {
+                Bitmap mutable = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                held = adjust(bytesInFlight, held, held + mutable.getAllocationByteCount());
+                updatePeak(peakBytes, bytesInFlight.get());
+                bitmap.recycle();
+                bitmap = mutable;
+                held = adjust(bytesInFlight, held, bitmap.getAllocationByteCount());
+            }
+
+            // Draw straight onto the decoded image; there is no undo, so no drawing layer is needed
+            float scaleX = (float) bitmap.getWidth() / referenceWidth;
+            float scaleY = (float) bitmap.getHeight() / referenceHeight;
+            Canvas canvas = new Canvas(bitmap);
+            PaintCache paints = PaintCache.getInstance();
+            for (Stroke stroke : strokes) {
+                // A scaled copy per image, since strokes cache their paths and are shared between workers
+                Stroke scaled = stroke.scaled(scaleX, scaleY);
+                scaled.draw(canvas, paints);
+            }
+
+            File output = new File(outputDirectory, outputName(image.getName(), format));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE);
+            try {
+                if (!bitmap.compress(format.toCompressFormat(), quality, out)) {
+                    throw new IOException("Bitmap.compress failed");
+                }
+            } finally {
+                out.close();
+            }
+            return output;
+        } finally {
+            pool.put(bitmap);
+            bytesInFlight.addAndGet(-held);
+        }
+    }
+
+    // Change this image's share of the bytes in flight from held to now, returning now
+    private static long adjust(AtomicLong bytesInFlight, long held, long now) {
+        bytesInFlight.addAndGet(now - held);
+        return now;
+    }
+
+    private static String outputName(String sourceName, BitmapExporter.Format format) {
+        int dot = sourceName.lastIndexOf('.');
+        String baseName = dot > 0 ? sourceName.substring(0, dot) : sourceName;
+        return baseName + "_annotated" + format.extension;
+    }
+
+    // Two ARGB_8888 images plus room for the encoder's working buffers: turning an EXIF-rotated decode
+    // upright, or copying an immutable one, holds the decode and its copy at the same time. The
+    // orientation is only known once the file is read, so every slot allows for it.
+    private static long estimateBytes(int width, int height) {
+        return (long) width * height * 4 * 2 + BUFFER_SIZE + 512 * 1024;
+    }
+
+    private static void updatePeak(AtomicLong peak, long value) {
+        long current;
+        while (value > (current = peak.get()) && !peak.compareAndSet(current, value)) {
+            // Retry until the larger value is stored
+        }
+    }
+}
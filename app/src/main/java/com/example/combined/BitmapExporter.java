@@ -0,0 +1,212 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BitmapExporter {
+
+    private static final String TAG = "BitmapExporter";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_STEP_BYTES = 256 * 1024;
+
+    // Single background thread so exports are written one after another and never on the UI thread
+    private static final ExecutorService EXPORT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public enum Format {
+        JPEG(".jpg", "image/jpeg"),
+        PNG(".png", "image/png"),
+        WEBP(".webp", "image/webp");
+
+        public final String extension;
+        public final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+
+        @SuppressWarnings("deprecation")
+        Bitmap.CompressFormat toCompressFormat() {
+            switch (this) {
+                case PNG:
+                    return Bitmap.CompressFormat.PNG;
+                case WEBP:
+                    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                            ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+                default:
+                    return Bitmap.CompressFormat.JPEG;
+            }
+        }
+    }
+
+    public interface Callback {
+        void onExportProgress(long bytesWritten);
+
+        void onExported(File file, ExportStats stats);
+
+        void onExportFailed(Exception e);
+    }
+
+    // Latency and output size of one export, so formats and qualities can be compared
+    public static class ExportStats {
+        public Format format;
+        public int quality;
+        public int width;
+        public int height;
+        public long millis;
+        public long bytes;
+
+        @Override
+        public String toString() {
+            return format + " q" + quality + " " + width + "x" + height
+                    + " " + millis + "ms " + (bytes / 1024) + "KB";
+        }
+    }
+
+    public static class ExportTask {
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        public void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // Compress the bitmap into the file on the background thread; the bitmap must not change until the callback runs
+    public ExportTask export(final Bitmap bitmap, final File file, final Format format, final int quality,
+                             final Callback callback) {
+        final ExportTask task = new ExportTask();
+        task.future = EXPORT_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (task.isCancelled()) {
+                    return;
+                }
+                try {
+                    final ExportStats stats = write(bitmap, file, format, quality, task, callback);
+                    Log.d(TAG, "Exported " + file.getName() + ": " + stats);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!task.isCancelled()) {
+                                callback.onExported(file, stats);
+                            }
+                        }
+                    });
+                } catch (final IOException e) {
+                    file.delete();
+                    if (task.isCancelled()) {
+                        return; // Cancellation surfaces as an interrupted write, nothing to report
+                    }
+                    Log.e(TAG, "Failed to export " + file.getName(), e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onExportFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+        return task;
+    }
+
+    private ExportStats write(Bitmap bitmap, File file, Format format, int quality, final ExportTask task,
+                              final Callback callback) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        ProgressOutputStream out = new ProgressOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), task, callback);
+        try {
+            if (!bitmap.compress(format.toCompressFormat(), quality, out)) {
+                throw task.isCancelled() ? new InterruptedIOException("Export cancelled")
+                        : new IOException("Bitmap.compress failed");
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+
+        ExportStats stats = new ExportStats();
+        stats.format = format;
+        stats.quality = quality;
+        stats.width = bitmap.getWidth();
+        stats.height = bitmap.getHeight();
+        stats.millis = SystemClock.elapsedRealtime() - start;
+        stats.bytes = file.length();
+        return stats;
+    }
+
+    // Counts written bytes, posts progress every few hundred KB and aborts the write once cancelled
+    private class ProgressOutputStream extends FilterOutputStream {
+        private final ExportTask task;
+        private final Callback callback;
+        private long written;
+        private long nextReport = PROGRESS_STEP_BYTES;
+
+        ProgressOutputStream(OutputStream out, ExportTask task, Callback callback) {
+            super(out);
+            this.task = task;
+            this.callback = callback;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkCancelled();
+            out.write(b);
+            advance(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            out.write(b, off, len);
+            advance(len);
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (task.isCancelled()) {
+                throw new InterruptedIOException("Export cancelled");
+            }
+        }
+
+        private void advance(int count) {
+            written += count;
+            if (written >= nextReport) {
+                nextReport = written + PROGRESS_STEP_BYTES;
+                final long bytesWritten = written;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!task.isCancelled()) {
+                            callback.onExportProgress(bytesWritten);
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.combined;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BitmapLoader {
+
+    private static final String TAG = "BitmapLoader";
+
+    // Heaps up to this size count as tight, where opaque photos are decoded as RGB_565
+    private static final int TIGHT_MEMORY_CLASS_MB = 128;
+
+    // Single background thread so that decodes never overlap and never touch the UI thread
+    private static final ExecutorService DECODE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public interface Callback {
+        void onBitmapLoaded(Bitmap bitmap, DecodeStats stats);
+
+        void onBitmapFailed(Exception e);
+    }
+
+    // Timing and memory figures for one decode, reported back to the caller
+    public static class DecodeStats {
+        public int sourceWidth;
+        public int sourceHeight;
+        public int inSampleSize;
+        public long boundsMillis;
+        public long decodeMillis;
+        public long peakBytes; // Bitmap memory held at the peak of the decode
+        public long fullSizeBytes; // What a full-resolution ARGB_8888 decode would have cost
+        public int orientation = ExifInterface.ORIENTATION_NORMAL; // EXIF orientation applied to the result
+        public Bitmap.Config config;
+
+        @Override
+        public String toString() {
+            return "source=" + sourceWidth + "x" + sourceHeight
+                    + " inSampleSize=" + inSampleSize
+                    + " bounds=" + boundsMillis + "ms"
+                    + " decode=" + decodeMillis + "ms"
+                    + " peak=" + (peakBytes / 1024) + "KB"
+                    + " orientation=" + orientation
+                    + " config=" + config
+                    + " fullSize=" + (fullSizeBytes / 1024) + "KB";
+        }
+    }
+
+    // Decode the image at the given path on the background thread, scaled to fit inside reqWidth x reqHeight
+    public Future<?> load(String path, int reqWidth, int reqHeight, Callback callback) {
+        return load(path, reqWidth, reqHeight, false, callback);
+    }
+
+    // Same, decoding opaque images as RGB_565 if allowed
+    public Future<?> load(final String path, final int reqWidth, final int reqHeight, final boolean allowRgb565,
+                          final Callback callback) {
+        return DECODE_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                final DecodeStats stats = new DecodeStats();
+                try {
+                    final Bitmap bitmap = decode(path, reqWidth, reqHeight, allowRgb565, stats);
+                    Log.d(TAG, "Decoded " + path + ": " + stats);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onBitmapLoaded(bitmap, stats);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to decode " + path, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onBitmapFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // Synchronous decode: read the bounds, then decode once with inSampleSize and inDensity scaling
+    public static Bitmap decode(String path, int reqWidth, int reqHeight, DecodeStats stats) throws IOException {
+        return decode(path, reqWidth, reqHeight, false, stats);
+    }
+
+    // Same, decoding opaque images as RGB_565 if allowed. The result is turned upright according to the
+    // EXIF orientation, with reqWidth x reqHeight applying to the upright image.
+    public static Bitmap decode(String path, int reqWidth, int reqHeight, boolean allowRgb565, DecodeStats stats)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        stats.orientation = readOrientation(path);
+        if (isTransposed(stats.orientation)) {
+            // Sampling works on the stored image, which is on its side
+            int swap = reqWidth;
+            reqWidth = reqHeight;
+            reqHeight = swap;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Cannot read image bounds: " + path);
+        }
+        stats.sourceWidth = options.outWidth;
+        stats.sourceHeight = options.outHeight;
+        stats.fullSizeBytes = (long) options.outWidth * options.outHeight * 4;
+        stats.boundsMillis = SystemClock.elapsedRealtime() - start;
+
+        options.inJustDecodeBounds = false;
+        // JPEG has no alpha, so half the memory loses nothing but some colour depth
+        options.inPreferredConfig = allowRgb565 && "image/jpeg".equals(options.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        stats.config = options.inPreferredConfig;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        applyDensityScale(options, reqWidth, reqHeight);
+        stats.inSampleSize = options.inSampleSize;
+
+        // Decode into pooled memory when a suitable bitmap is available
+        BitmapPool pool = BitmapPool.getInstance();
+        pool.applyInBitmap(options, scaledSize(options.outWidth, options), scaledSize(options.outHeight, options));
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not hold this decode; fall back to a fresh allocation
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Cannot decode image: " + path);
+        }
+        stats.peakBytes = bitmap.getAllocationByteCount();
+        if (stats.orientation != ExifInterface.ORIENTATION_NORMAL && stats.orientation != ExifInterface.ORIENTATION_UNDEFINED) {
+            bitmap = orient(bitmap, stats);
+        }
+        stats.decodeMillis = SystemClock.elapsedRealtime() - start - stats.boundsMillis;
+        return bitmap;
+    }
+
+    // Decoders cannot rotate, so the already sampled bitmap is drawn upright into pooled memory; the full
+    // size image never exists at any point
+    private static Bitmap orient(Bitmap decoded, DecodeStats stats) {
+        boolean isTransposed = isTransposed(stats.orientation);
+        int width = isTransposed ? decoded.getHeight() : decoded.getWidth();
+        int height = isTransposed ? decoded.getWidth() : decoded.getHeight();
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap oriented = pool.get(width, height, decoded.getConfig());
+        Matrix matrix = new Matrix();
+        setOrientationMatrix(matrix, stats.orientation, decoded.getWidth(), decoded.getHeight());
+        new Canvas(oriented).drawBitmap(decoded, matrix, null); // Quarter turns and flips map pixels exactly
+        stats.peakBytes += oriented.getAllocationByteCount();
+        pool.put(decoded);
+        return oriented;
+    }
+
+    // EXIF orientation of a JPEG, or ORIENTATION_NORMAL when there is none
+    public static int readOrientation(String path) {
+        try {
+            return new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read EXIF orientation of " + path, e);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    // Whether the orientation swaps width and height
+    public static boolean isTransposed(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_TRANSPOSE || orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE || orientation == ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    // Map pixels of a stored width x height image to where they are in the upright image
+    public static void setOrientationMatrix(Matrix matrix, int orientation, int width, int height) {
+        matrix.reset();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                matrix.postTranslate(width, 0);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                matrix.postTranslate(width, height);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                matrix.postTranslate(0, height);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                matrix.postTranslate(height, 0);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                matrix.postTranslate(height, width);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                matrix.postTranslate(0, width);
+                break;
+        }
+    }
+
+    // Low-RAM devices and small heaps, where an opaque photo is better decoded as RGB_565
+    public static boolean isMemoryTight(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.isLowRamDevice() || activityManager.getMemoryClass() <= TIGHT_MEMORY_CLASS_MB;
+    }
+
+    // Largest power of two that keeps both sampled dimensions at least as big as the requested ones
+    public static int calculateInSampleSize(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        while (srcWidth / (inSampleSize * 2) >= reqWidth && srcHeight / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    // Output dimension of a decode with the given options, rounded up so a pooled bitmap is never too small
+    private static int scaledSize(int sourceSize, BitmapFactory.Options options) {
+        int sampled = (sourceSize + options.inSampleSize - 1) / options.inSampleSize;
+        if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+            return (int) Math.ceil(sampled * (double) options.inTargetDensity / options.inDensity);
+        }
+        return sampled;
+    }
+
+    // Let the decoder do the remaining (non power of two) downscale so no second scaled copy is needed
+    private static void applyDensityScale(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return;
+        }
+        float widthRatio = (float) reqWidth / options.outWidth;
+        float heightRatio = (float) reqHeight / options.outHeight;
+        if (widthRatio >= 1f && heightRatio >= 1f) {
+            return; // Never upscale
+        }
+        options.inScaled = true;
+        if (widthRatio <= heightRatio) {
+            options.inDensity = options.outWidth;
+            options.inTargetDensity = reqWidth * options.inSampleSize;
+        } else {
+            options.inDensity = options.outHeight;
+            options.inTargetDensity = reqHeight * options.inSampleSize;
+        }
+    }
+}
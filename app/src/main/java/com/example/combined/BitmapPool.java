@@ -0,0 +1,222 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process-wide pool of mutable bitmaps, keyed by size and config and limited by a byte budget.
+ *
+ * Exact matches are handed out first; otherwise a larger pooled bitmap is reshaped with
+ * Bitmap.reconfigure. Decodes can reuse pooled memory through BitmapFactory.Options.inBitmap.
+ */
+public class BitmapPool {
+
+    private static BitmapPool instance;
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            // A sixteenth of the heap is enough for a few view-sized bitmaps plus spare tiles
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        }
+        return instance;
+    }
+
+    private static class Key {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+
+        Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + (config == null ? 0 : config.hashCode());
+        }
+    }
+
+    private final Map<Key, ArrayDeque<Bitmap>> bitmapsByKey = new HashMap<>();
+    private final ArrayDeque<Bitmap> lru = new ArrayDeque<>(); // Oldest first, used for eviction
+    private long maxBytes;
+    private long currentBytes;
+
+    private int hitCount;
+    private int reconfigureCount;
+    private int missCount;
+    private int evictionCount;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Returns a cleared, mutable bitmap of the given size, reusing pooled memory where possible
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(new Key(width, height, config));
+        if (bitmap != null) {
+            hitCount++;
+        } else {
+            bitmap = takeReconfigurable(width, height, config);
+            if (bitmap != null) {
+                reconfigureCount++;
+            }
+        }
+        if (bitmap == null) {
+            missCount++;
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.setHasAlpha(true);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    // Point options.inBitmap at a pooled bitmap large enough for a decode of the given output size
+    public synchronized void applyInBitmap(BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = take(new Key(width, height, config));
+        if (bitmap != null) {
+            hitCount++;
+        } else {
+            bitmap = takeLargeEnough((long) width * height * bytesPerPixel(config));
+            if (bitmap != null) {
+                reconfigureCount++;
+            } else {
+                missCount++;
+            }
+        }
+        options.inBitmap = bitmap;
+    }
+
+    // Give a bitmap back to the pool; immutable bitmaps cannot be reused and are ignored
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        long size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = bitmapsByKey.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            bitmapsByKey.put(key, bitmaps);
+        }
+        if (bitmaps.contains(bitmap)) {
+            return;
+        }
+        bitmaps.push(bitmap);
+        lru.addLast(bitmap);
+        currentBytes += size;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getReconfigureCount() {
+        return reconfigureCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool hits=" + hitCount + " reconfigured=" + reconfigureCount + " misses=" + missCount
+                + " evictions=" + evictionCount + " size=" + (currentBytes / 1024) + "/" + (maxBytes / 1024) + "KB";
+    }
+
+    private Bitmap take(Key key) {
+        ArrayDeque<Bitmap> bitmaps = bitmapsByKey.get(key);
+        if (bitmaps == null || bitmaps.isEmpty()) {
+            return null;
+        }
+        Bitmap bitmap = bitmaps.pop();
+        lru.remove(bitmap);
+        currentBytes -= bitmap.getAllocationByteCount();
+        return bitmap;
+    }
+
+    // Find the oldest pooled bitmap whose allocation can hold the requested size and reshape it
+    private Bitmap takeReconfigurable(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = takeLargeEnough((long) width * height * bytesPerPixel(config));
+        if (bitmap != null) {
+            bitmap.reconfigure(width, height, config);
+        }
+        return bitmap;
+    }
+
+    private Bitmap takeLargeEnough(long requiredBytes) {
+        for (Iterator<Bitmap> iterator = lru.iterator(); iterator.hasNext(); ) {
+            Bitmap bitmap = iterator.next();
+            long size = bitmap.getAllocationByteCount();
+            // Avoid pinning a much larger allocation to a small request
+            if (size >= requiredBytes && size <= requiredBytes * 4) {
+                iterator.remove();
+                bitmapsByKey.get(new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+                currentBytes -= size;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private void trimToSize(long size) {
+        while (currentBytes > size && !lru.isEmpty()) {
+            Bitmap eldest = lru.removeFirst();
+            bitmapsByKey.get(new Key(eldest.getWidth(), eldest.getHeight(), eldest.getConfig())).remove(eldest);
+            currentBytes -= eldest.getAllocationByteCount();
+            evictionCount++;
+            eldest.recycle();
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
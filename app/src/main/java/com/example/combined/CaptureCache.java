@@ -0,0 +1,126 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.util.concurrent.Future;
+
+/**
+ * Hands a freshly captured photo from MainActivity to DrawActivity without decoding it twice.
+ *
+ * As soon as the camera returns, MainActivity starts decoding a preview of the file and passes the
+ * capture's key to DrawActivity, so the decode overlaps with starting and laying out the activity.
+ * DrawActivity then takes the capture under that key and opens its preview, right away if it is ready
+ * or as soon as it is. Only the latest capture is kept; starting another one drops a preview nobody
+ * took. After process death the key is unknown and DrawActivity decodes the file itself.
+ *
+ * All methods must be called on the main thread.
+ */
+public class CaptureCache {
+
+    private static CaptureCache instance;
+
+    private final BitmapLoader bitmapLoader = new BitmapLoader();
+    private Capture capture; // The latest capture, until it is taken
+    private int captureCount;
+
+    // A capture with its preview, once decoded
+    public static class Capture {
+        public final String key;
+        public final File file;
+        public final long capturedNanos; // DrawingMetrics.now() when the camera returned the photo
+        private Future<?> pendingDecode;
+        private Bitmap bitmap;
+        private BitmapLoader.DecodeStats stats;
+        private Exception error;
+        private BitmapLoader.Callback callback; // Set when opened before the decode finished
+
+        Capture(String key, File file, long capturedNanos) {
+            this.key = key;
+            this.file = file;
+            this.capturedNanos = capturedNanos;
+        }
+    }
+
+    public static synchronized CaptureCache getInstance() {
+        if (instance == null) {
+            instance = new CaptureCache();
+        }
+        return instance;
+    }
+
+    // Start decoding a preview that fits inside width x height and return the key to take it with
+    public String startPreview(File file, int width, int height, boolean allowRgb565, long capturedNanos) {
+        discard();
+        final Capture started = new Capture(file.getName() + "#" + (++captureCount), file, capturedNanos);
+        capture = started;
+        started.pendingDecode = bitmapLoader.load(file.getPath(), width, height, allowRgb565, new BitmapLoader.Callback() {
+            @Override
+            public void onBitmapLoaded(Bitmap bitmap, BitmapLoader.DecodeStats stats) {
+                started.pendingDecode = null;
+                if (started.callback != null) {
+                    started.callback.onBitmapLoaded(bitmap, stats);
+                } else if (capture == started) {
+                    started.bitmap = bitmap;
+                    started.stats = stats;
+                } else {
+                    BitmapPool.getInstance().put(bitmap); // Dropped for a newer capture, or cancelled
+                }
+            }
+
+            @Override
+            public void onBitmapFailed(Exception e) {
+                started.pendingDecode = null;
+                if (started.callback != null) {
+                    started.callback.onBitmapFailed(e);
+                } else {
+                    started.error = e;
+                }
+            }
+        });
+        return started.key;
+    }
+
+    // Remove the capture with the given key from the cache, or return null when there is no such capture any more
+    public Capture take(String key) {
+        Capture taken = capture;
+        if (taken == null || !taken.key.equals(key)) {
+            return null;
+        }
+        capture = null;
+        return taken;
+    }
+
+    // Hand the preview of a taken capture to the callback, right away if it has been decoded already
+    public void open(Capture taken, BitmapLoader.Callback callback) {
+        if (taken.bitmap != null) {
+            Bitmap bitmap = taken.bitmap;
+            taken.bitmap = null;
+            callback.onBitmapLoaded(bitmap, taken.stats);
+        } else if (taken.error != null) {
+            callback.onBitmapFailed(taken.error);
+        } else {
+            taken.callback = callback;
+        }
+    }
+
+    // Give up on a taken capture whose preview is still being decoded, e.g. when its activity is destroyed
+    public void cancel(Capture taken) {
+        if (taken.pendingDecode != null) {
+            taken.pendingDecode.cancel(true);
+            taken.pendingDecode = null;
+        }
+        taken.callback = null;
+    }
+
+    private void discard() {
+        if (capture == null) {
+            return;
+        }
+        if (capture.pendingDecode != null) {
+            capture.pendingDecode.cancel(true);
+        }
+        BitmapPool.getInstance().put(capture.bitmap);
+        capture = null;
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.combined;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One layer of strokes in a DrawingDocument: its tiles plus how it is composited onto the layers below.
+ *
+ * Every change to the tiles or the compositing properties gives the layer a new {@link #getVersion()},
+ * which is how the document and the renderer notice that a cached composite containing this layer is
+ * out of date. Versions are drawn from one increasing sequence, so the newest version in a group of
+ * layers identifies the state of the whole group.
+ */
+public class DocumentLayer {
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final String name;
+    private TiledLayer tiles;
+    private boolean isVisible = true;
+    private int alpha = 255;
+    private PorterDuff.Mode blendMode = PorterDuff.Mode.SRC_OVER;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private long version = nextVersion();
+
+    DocumentLayer(String name, int width, int height) {
+        this.name = name;
+        this.tiles = new TiledLayer(width, height);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public TiledLayer getTiles() {
+        return tiles;
+    }
+
+    public boolean isVisible() {
+        return isVisible;
+    }
+
+    public void setVisible(boolean visible) {
+        if (isVisible != visible) {
+            isVisible = visible;
+            version = nextVersion();
+        }
+    }
+
+    public int getAlpha() {
+        return alpha;
+    }
+
+    public void setAlpha(int alpha) {
+        alpha = Math.max(0, Math.min(255, alpha));
+        if (this.alpha != alpha) {
+            this.alpha = alpha;
+            paint.setAlpha(alpha);
+            version = nextVersion();
+        }
+    }
+
+    public PorterDuff.Mode getBlendMode() {
+        return blendMode;
+    }
+
+    public void setBlendMode(PorterDuff.Mode mode) {
+        if (blendMode != mode) {
+            blendMode = mode;
+            paint.setXfermode(mode == PorterDuff.Mode.SRC_OVER ? null : new PorterDuffXfermode(mode));
+            version = nextVersion();
+        }
+    }
+
+    // Normal blending, which lets this layer be flattened together with its neighbours ahead of time
+    public boolean isSourceOver() {
+        return blendMode == PorterDuff.Mode.SRC_OVER;
+    }
+
+    // Paint to composite the layer with, or null when it is fully opaque with normal blending
+    public Paint getPaint() {
+        return alpha == 255 && isSourceOver() ? null : paint;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void drawTo(Canvas canvas) {
+        if (isVisible && alpha > 0) {
+            tiles.drawTo(canvas, getPaint());
+        }
+    }
+
+    // Called whenever the tiles have been drawn into or cleared
+    void markChanged() {
+        version = nextVersion();
+    }
+
+    // Start over with empty tiles of the given size, e.g. after the image was cropped
+    void resize(int width, int height) {
+        tiles.release();
+        tiles = new TiledLayer(width, height);
+        version = nextVersion();
+    }
+
+    void release() {
+        tiles.release();
+        version = nextVersion();
+    }
+
+    static long nextVersion() {
+        return VERSIONS.incrementAndGet();
+    }
+}
@@ -1,64 +1,129 @@
 
 package com.example.combined;
 
-import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.content.Context;
+import android.content.ActivityNotFoundException;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.SeekBar;
 import android.widget.Toast;
 
 import androidx.annotation.ColorInt;
-import androidx.core.app.ActivityCompat;
-import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 
 public class DrawActivity extends Activity {
 
+    private static final String TAG = "DrawActivity";
+
+    // Key of a CaptureCache preview to open instead of decoding the image file
+    public static final String EXTRA_CAPTURE_KEY = "captureKey";
+    // Reopen the autosaved session, e.g. after the app was killed, instead of starting over from the image
+    public static final String EXTRA_RESUME_SESSION = "resumeSession";
+    // SessionIndex id of the saved drawing being edited, so saving replaces it instead of adding another
+    public static final String EXTRA_SESSION_ID = "sessionId";
+
     private DrawOnImageView drawOnImageView;
     private boolean isDrawingEnabled = false;
     private int currentColor = Color.BLACK; // Default color is black
 
-    private static final int PIC_CROP = 2;
-    private static final int REQUEST_CODE_WRITE_EXTERNAL_STORAGE_PERMISSION = 101;
+    private final BitmapLoader bitmapLoader = new BitmapLoader();
+    private Future<?> pendingLoad;
+    private CaptureCache.Capture pendingCapture; // Taken from the cache, preview still being decoded
+    private final BitmapExporter bitmapExporter = new BitmapExporter();
+    private BitmapExporter.ExportTask pendingExport;
+
+    private static final int EXPORT_QUALITY = 90;
+    private static final int SOURCE_QUALITY = 95; // The saved source is decoded and drawn on again
+
+    private static final String STATE_SESSION_SAVED = "sessionSaved";
+    // Where the session image sits in the decode the image pyramid lines up with, which a crop changes
+    private static final String STATE_PYRAMID_BASE_SIZE = "pyramidBaseSize";
+    private static final String STATE_PYRAMID_ORIGIN = "pyramidOrigin";
+    private SessionStore sessionStore;
+    private boolean isSessionSaved = false;
+    private String imagePath;
+
+    private static final String STATE_SESSION_ID = "sessionId";
+    private static final String STATE_IMAGE_PATH = "imagePath";
+    private SessionIndex sessionIndex;
+    private long sessionId; // 0 until the drawing is first saved
+    private boolean isSourceSaved; // Whether the document image is what getSourceFile(sessionId) holds
+    private SessionIndex.SavedStrokes pendingSavedStrokes; // Applied once the saved source is decoded
+    private final SessionRecorder sessionRecorder = new SessionRecorder();
+
     private static final int REQUEST_CODE_SAVE_IMAGE = 3;
 
+    private final DrawingMetrics metrics = DrawingMetrics.getInstance();
+    private FrameMonitor frameMonitor;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_draw);
 
         String imageUriString = getIntent().getStringExtra("imageUri");
-        Uri imageUri = Uri.parse(imageUriString);
-        Bitmap imageBitmap = BitmapFactory.decodeFile(imageUri.getPath());
+        final Uri imageUri = Uri.parse(imageUriString);
+        imagePath = imageUri.getPath();
+        if (savedInstanceState != null && savedInstanceState.getString(STATE_IMAGE_PATH) != null) {
+            imagePath = savedInstanceState.getString(STATE_IMAGE_PATH); // e.g. the source of a saved drawing
+        }
 
         drawOnImageView = findViewById(R.id.drawOnImageView);
-        drawOnImageView.setImageBitmap(imageBitmap);
-        
-
-
-
-        // Set fixed dimensions for the captured image (353dp width, 590dp height)
-        int desiredWidth = dpToPx(375);
-        int desiredHeight = dpToPx(599);
+        frameMonitor = new FrameMonitor(metrics, getWindow(), getWindowManager().getDefaultDisplay().getRefreshRate());
+        sessionStore = new SessionStore(new File(getCacheDir(), "session"));
+        sessionIndex = SessionIndex.getInstance(this);
+        sessionId = savedInstanceState != null ? savedInstanceState.getLong(STATE_SESSION_ID, 0)
+                : getIntent().getLongExtra(EXTRA_SESSION_ID, 0);
+        drawOnImageView.setOnHistoryChangeListener(sessionRecorder);
+        drawOnImageView.setOnTextRequestListener(new DrawOnImageView.OnTextRequestListener() {
+            @Override
+            public void onTextRequested(float x, float y) {
+                showTextInput(x, y);
+            }
+        });
 
-        // Scale the captured image to match the desired dimensions
-        Bitmap scaledImageBitmap = Bitmap.createScaledBitmap(imageBitmap, desiredWidth, desiredHeight, true);
-        drawOnImageView.setImageBitmap(scaledImageBitmap);
+        if (savedInstanceState != null && savedInstanceState.getBoolean(STATE_SESSION_SAVED, false)
+                && sessionStore.hasSession()) {
+            // Recreated after a configuration change or process death: reopen the saved session instead of the JPEG
+            restoreSession(imagePath, savedInstanceState.getIntArray(STATE_PYRAMID_BASE_SIZE),
+                    savedInstanceState.getFloatArray(STATE_PYRAMID_ORIGIN));
+        } else if (savedInstanceState == null && getIntent().getBooleanExtra(EXTRA_RESUME_SESSION, false)
+                && sessionStore.hasSession()) {
+            // Where the image sat in the pyramid's decode was lost with the process, so no detail tiles
+            restoreSession(imagePath, null, null);
+        } else if (savedInstanceState == null && sessionId != 0) {
+            openSavedDrawing();
+        } else {
+            String captureKey = getIntent().getStringExtra(EXTRA_CAPTURE_KEY);
+            CaptureCache.Capture capture = captureKey != null ? CaptureCache.getInstance().take(captureKey) : null;
+            if (capture != null) {
+                // A fresh capture whose preview MainActivity started decoding, which may be ready already
+                pendingCapture = capture;
+                CaptureCache.getInstance().open(capture, new ImageLoadCallback(imageUri.getPath(), capture.capturedNanos));
+            } else {
+                // Decode once the view has been laid out so the bitmap can be sampled down to the view size
+                drawOnImageView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadImage(imageUri.getPath());
+                    }
+                });
+            }
+        }
 
         ImageButton buttonDraw = findViewById(R.id.buttonDraw);
         buttonDraw.setOnClickListener(new View.OnClickListener() {
@@ -83,6 +148,25 @@ public class DrawActivity extends Activity {
             }
         });
 
+        // Tapping cycles through the draw, erase and select tools; a long press deletes the selected stroke
+        ImageButton buttonEraser = findViewById(R.id.buttonEraser);
+        buttonEraser.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                nextTool();
+            }
+        });
+        buttonEraser.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (!drawOnImageView.hasSelection()) {
+                    return false;
+                }
+                drawOnImageView.deleteSelection();
+                return true;
+            }
+        });
+
         ImageButton buttonCrop = findViewById(R.id.buttonCrop);
         buttonCrop.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -106,7 +190,212 @@ public class DrawActivity extends Activity {
             }
         });
 
+        // Saves the merged image into the gallery, replacing this drawing's previous save
+        ImageButton buttonSave = findViewById(R.id.buttonSave);
+        buttonSave.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                saveImageWithDrawings();
+            }
+        });
+
+
+    }
+
+    private void restoreSession(final String imagePath, final int[] pyramidBaseSize, final float[] pyramidOrigin) {
+        sessionStore.restore(new SessionStore.RestoreCallback() {
+            @Override
+            public void onSessionRestored(Bitmap image, List<Stroke> strokes, List<Stroke> undoneStrokes, long millis) {
+                if (isFinishing() || isDestroyed()) {
+                    BitmapPool.getInstance().put(image);
+                    return;
+                }
+                drawOnImageView.restoreSession(image, strokes, undoneStrokes);
+                if (pyramidBaseSize != null && pyramidOrigin != null) {
+                    ImagePyramid pyramid = createImagePyramid(imagePath, pyramidBaseSize[0], pyramidBaseSize[1]);
+                    pyramid.offsetOrigin(pyramidOrigin[0], pyramidOrigin[1]);
+                    drawOnImageView.setImagePyramid(pyramid);
+                }
+                isSessionSaved = true;
+            }
+
+            @Override
+            public void onSessionRestoreFailed(Exception e) {
+                // Start over from the original photo
+                drawOnImageView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadImage(imagePath);
+                    }
+                });
+            }
+        });
+    }
+
+    // Mirrors every history change into the session files
+    private class SessionRecorder implements DrawOnImageView.OnHistoryChangeListener {
+        @Override
+        public void onStrokeAdded(Stroke stroke) {
+            sessionStore.appendStroke(stroke);
+        }
+
+        @Override
+        public void onUndo() {
+            sessionStore.appendUndo();
+        }
+
+        @Override
+        public void onRedo() {
+            sessionStore.appendRedo();
+        }
+
+        @Override
+        public void onImageChanged() {
+            isSourceSaved = false; // A new image or a crop
+            sessionStore.writeSnapshot(drawOnImageView.getBitmap(), imagePath, sessionId, drawOnImageView.getStrokes(),
+                    drawOnImageView.getUndoneStrokes());
+            isSessionSaved = true;
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_SESSION_SAVED, isSessionSaved);
+        outState.putLong(STATE_SESSION_ID, sessionId);
+        outState.putString(STATE_IMAGE_PATH, imagePath);
+        ImagePyramid pyramid = drawOnImageView.getImagePyramid();
+        if (pyramid != null) {
+            outState.putIntArray(STATE_PYRAMID_BASE_SIZE, new int[]{pyramid.getBaseWidth(), pyramid.getBaseHeight()});
+            outState.putFloatArray(STATE_PYRAMID_ORIGIN, new float[]{pyramid.getOriginX(), pyramid.getOriginY()});
+        }
+    }
+
+    // Reopen a drawing from the gallery: its source with the strokes on top, still editable
+    private void openSavedDrawing() {
+        sessionIndex.loadSavedDrawing(sessionId, new SessionIndex.SavedDrawingCallback() {
+            @Override
+            public void onSavedDrawingLoaded(File image, SessionIndex.SavedStrokes strokes) {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                imagePath = image.getPath();
+                pendingSavedStrokes = strokes;
+                drawOnImageView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadImage(imagePath);
+                    }
+                });
+            }
+        });
+    }
+
+    // The saved strokes over the decoded source, scaled if it was decoded at another size than it was saved at
+    private void restoreSavedStrokes(Bitmap source, SessionIndex.SavedStrokes saved) {
+        float scaleX = (float) source.getWidth() / saved.width;
+        float scaleY = (float) source.getHeight() / saved.height;
+        List<Stroke> strokes = saved.strokes;
+        if (scaleX != 1 || scaleY != 1) {
+            strokes = new ArrayList<>(saved.strokes.size());
+            for (Stroke stroke : saved.strokes) {
+                strokes.add(stroke.scaled(scaleX, scaleY));
+            }
+        }
+        drawOnImageView.restoreSession(source, strokes, new ArrayList<Stroke>());
+        sessionRecorder.onImageChanged(); // Start the session from the restored history
+        isSourceSaved = scaleX == 1 && scaleY == 1;
+    }
+
+    private void loadImage(final String path) {
+        // Fall back to the fixed dimensions (375dp width, 599dp height) if the view has no size yet
+        int desiredWidth = drawOnImageView.getWidth() > 0 ? drawOnImageView.getWidth() : dpToPx(375);
+        int desiredHeight = drawOnImageView.getHeight() > 0 ? drawOnImageView.getHeight() : dpToPx(599);
+
+        pendingLoad = bitmapLoader.load(path, desiredWidth, desiredHeight, BitmapLoader.isMemoryTight(this),
+                new ImageLoadCallback(path, 0));
+    }
+
+    // Shows a decoded image, whether it came from the file or from a capture preview
+    private class ImageLoadCallback implements BitmapLoader.Callback {
+        private final String path;
+        private final long capturedNanos; // 0 unless this is a capture preview
+
+        ImageLoadCallback(String path, long capturedNanos) {
+            this.path = path;
+            this.capturedNanos = capturedNanos;
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap bitmap, BitmapLoader.DecodeStats stats) {
+            pendingLoad = null;
+            pendingCapture = null;
+            metrics.recordMillis(DrawingMetrics.Operation.DECODE, stats.boundsMillis + stats.decodeMillis);
+            if (isFinishing() || isDestroyed()) {
+                BitmapPool.getInstance().put(bitmap);
+                return;
+            }
+            if (pendingSavedStrokes != null) {
+                restoreSavedStrokes(bitmap, pendingSavedStrokes);
+                pendingSavedStrokes = null;
+            } else {
+                drawOnImageView.setImageBitmap(bitmap);
+            }
+            // Zooming in past the decoded size shows tiles decoded from the file itself
+            drawOnImageView.setImagePyramid(createImagePyramid(path, bitmap.getWidth(), bitmap.getHeight()));
+            if (capturedNanos != 0) {
+                // From the camera returning the photo to the first frame that shows it
+                drawOnImageView.recordUntilNextFrame(DrawingMetrics.Operation.CAPTURE, capturedNanos);
+            }
+        }
+
+        @Override
+        public void onBitmapFailed(Exception e) {
+            pendingLoad = null;
+            pendingCapture = null;
+            if (capturedNanos != 0 && !isFinishing() && !isDestroyed()) {
+                loadImage(path); // Try the file once more at the view size
+                return;
+            }
+            Toast.makeText(DrawActivity.this, "Failed to load image", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Lines up with a decode of the file at the given size; uses at most a sixteenth of the heap for tiles
+    private ImagePyramid createImagePyramid(String path, int baseWidth, int baseHeight) {
+        return new ImagePyramid(path, baseWidth, baseHeight, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        frameMonitor.start();
+    }
 
+    @Override
+    protected void onPause() {
+        frameMonitor.stop();
+        sessionStore.flush(); // The process may be killed any time after this
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (pendingLoad != null) {
+            pendingLoad.cancel(true);
+        }
+        if (pendingCapture != null) {
+            CaptureCache.getInstance().cancel(pendingCapture);
+        }
+        if (pendingExport != null) {
+            // The export thread may still be reading the merged bitmap, so leave the bitmaps to the GC
+            pendingExport.cancel();
+        } else {
+            drawOnImageView.release();
+        }
+        sessionStore.close();
+        metrics.dumpToLog(TAG); // Includes the bitmap pool statistics
+        super.onDestroy();
     }
 
     private void showColorOptions() {
@@ -122,6 +411,24 @@ public class DrawActivity extends Activity {
         colorRed.setOnClickListener(v -> changeDrawingColor(Color.RED));
         colorBlue.setOnClickListener(v -> changeDrawingColor(Color.BLUE));
 
+        // The seek bar picks the width at full pressure, from 1 to 50 pixels
+        SeekBar strokeWidthBar = colorOptionsView.findViewById(R.id.strokeWidth);
+        strokeWidthBar.setProgress(drawOnImageView.getStrokeWidth() - 1);
+        strokeWidthBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                drawOnImageView.setStrokeWidth(progress + 1);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+
         // Create and show a custom AlertDialog with the color options layout
         AlertDialog colorOptionsDialog = new AlertDialog.Builder(this)
                 .setView(colorOptionsView)
@@ -136,55 +443,157 @@ public class DrawActivity extends Activity {
 
 
 
+    // Ask for the text of a label starting at the given point in image coordinates
+    private void showTextInput(final float x, final float y) {
+        final EditText input = new EditText(this);
+        input.setSingleLine(true);
+        new AlertDialog.Builder(this)
+                .setView(input)
+                .setPositiveButton("Add", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        drawOnImageView.addText(input.getText().toString(), x, y);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void nextTool() {
+        DrawOnImageView.Tool[] tools = DrawOnImageView.Tool.values();
+        DrawOnImageView.Tool tool = tools[(drawOnImageView.getTool().ordinal() + 1) % tools.length];
+        drawOnImageView.setTool(tool);
+        if (tool != DrawOnImageView.Tool.DRAW && !isDrawingEnabled) {
+            isDrawingEnabled = true; // Erasing and selecting go through the same touch handling
+            drawOnImageView.enableDrawing();
+        }
+        String[] names = {"Draw", "Erase", "Select (long press the eraser to delete)", "Line", "Arrow", "Rectangle",
+                "Ellipse", "Text (tap where it starts)"};
+        Toast.makeText(this, names[tool.ordinal()], Toast.LENGTH_SHORT).show();
+    }
+
+    // The first tap starts selecting a crop area, the second tap crops the image in place
     private void cropImage() {
-        // Check for the WRITE_EXTERNAL_STORAGE permission before cropping
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
-            // Request the permission if it's not granted
-            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, REQUEST_CODE_WRITE_EXTERNAL_STORAGE_PERMISSION);
-        } else {
-            // If the permission is already granted, proceed with cropping
-            // Get the current drawn image bitmap from the drawOnImageView
-            Bitmap currentBitmap = drawOnImageView.getBitmap();
-
-            // Get the dimensions of the DrawOnImageView
-            int desiredWidth = drawOnImageView.getWidth();
-            int desiredHeight = drawOnImageView.getHeight();
-            Bitmap mergedBitmap = drawOnImageView.getMergedBitmap();
-
-
-            // Create an intent to perform image cropping
-            Intent cropIntent = new Intent("com.android.camera.action.CROP");
-            cropIntent.setDataAndType(getImageUri(mergedBitmap), "image/*");
-            cropIntent.putExtra("crop", "true");
-            cropIntent.putExtra("aspectX", desiredWidth);
-            cropIntent.putExtra("aspectY", desiredHeight);
-            cropIntent.putExtra("outputX", desiredWidth); // Set the desired output width
-            cropIntent.putExtra("outputY", desiredHeight); // Set the desired output height
-            cropIntent.putExtra("scale", true);
-            cropIntent.putExtra("return-data", false); // Change to "true" to get the cropped bitmap in onActivityResult
-
-            // Grant temporary read and write permission to the content URI for the crop operation
-            cropIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
-
-            // Start the cropping activity
-            startActivityForResult(cropIntent, PIC_CROP);
+        if (pendingExport != null) {
+            // The image under the strokes is still being saved as the drawing's source
+            Toast.makeText(this, "Still saving the previous image", Toast.LENGTH_SHORT).show();
+        } else if (!drawOnImageView.isCropping()) {
+            drawOnImageView.startCrop();
+            Toast.makeText(this, "Drag to select an area, then tap crop again or press back to cancel",
+                    Toast.LENGTH_SHORT).show();
+        } else if (!drawOnImageView.applyCrop()) {
+            Toast.makeText(this, "Crop area is too small", Toast.LENGTH_SHORT).show();
         }
     }
 
-    // Save the bitmap to a temporary file and return its Uri using FileProvider
-    private Uri getImageUri(Bitmap bitmap) {
-        String title = "Image"; // Set a valid title without spaces
-        String description = "Image with Drawings"; // Set a description (optional)
-        String savedImageURL = MediaStore.Images.Media.insertImage(
-                getContentResolver(),
-                bitmap,
-                title,
-                description
-        );
-
-        return Uri.parse(savedImageURL);
+    @Override
+    public void onBackPressed() {
+        if (drawOnImageView.isCropping()) {
+            drawOnImageView.cancelCrop(); // Leave crop mode without cutting anything away
+            return;
+        }
+        super.onBackPressed();
+    }
+
+    private interface ExportListener {
+        void onExported(Uri uri);
     }
 
+    // Export the merged image off the UI thread as the saved image of this drawing, store its source and
+    // strokes next to it so it can be reopened for more drawing, record it in the session index and return
+    // its Uri using FileProvider
+    private void exportMergedBitmap(final ExportListener listener) {
+        if (drawOnImageView.getBitmap() == null) {
+            return; // The image is still being decoded
+        }
+        if (pendingExport != null) {
+            // The merged bitmap is still being written and must not be re-rendered yet
+            Toast.makeText(this, "Still saving the previous image", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (sessionId == 0) {
+            sessionId = sessionIndex.newId();
+            sessionStore.writeSource(imagePath, sessionId);
+        }
+        final long savedId = sessionId;
+        final File imageFile = sessionIndex.getImageFile(savedId);
+        final List<Stroke> strokes = new ArrayList<>(drawOnImageView.getStrokes());
+        // Written next to the previous save and renamed over it, so a failed save keeps the previous one
+        File outputFile = new File(imageFile.getPath() + ".tmp");
+
+        // An image-sized flattening of the view-sized document, held only until the export is written
+        Bitmap mergedBitmap = drawOnImageView.getMergedBitmap();
+        pendingExport = bitmapExporter.export(mergedBitmap, outputFile, BitmapExporter.Format.JPEG, EXPORT_QUALITY, new BitmapExporter.Callback() {
+            @Override
+            public void onExportProgress(long bytesWritten) {
+                // Exports of a view-sized image finish quickly, so progress is not shown
+            }
+
+            @Override
+            public void onExported(File file, final BitmapExporter.ExportStats stats) {
+                pendingExport = null;
+                drawOnImageView.releaseMergedBitmap();
+                metrics.recordMillis(DrawingMetrics.Operation.EXPORT, stats.millis);
+                if (!file.renameTo(imageFile)) {
+                    file.delete();
+                    Toast.makeText(DrawActivity.this, "Failed to save image", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                exportSource(savedId, new Runnable() {
+                    @Override
+                    public void run() {
+                        sessionIndex.put(savedId, stats.width, stats.height, strokes);
+                        listener.onExported(FileProvider.getUriForFile(DrawActivity.this,
+                                getApplicationContext().getPackageName() + ".fileprovider", imageFile));
+                    }
+                });
+            }
+
+            @Override
+            public void onExportFailed(Exception e) {
+                pendingExport = null;
+                drawOnImageView.releaseMergedBitmap();
+                Toast.makeText(DrawActivity.this, "Failed to save image", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    // Save the image under the strokes as the drawing's source, unless it is what the source already holds,
+    // then run onSaved; the saved image is kept even if this fails, it just reopens without its strokes
+    private void exportSource(long savedId, final Runnable onSaved) {
+        if (isSourceSaved) {
+            onSaved.run(); // Only the strokes changed
+            return;
+        }
+        final File sourceFile = sessionIndex.getSourceFile(savedId);
+        File outputFile = new File(sourceFile.getPath() + ".tmp");
+        pendingExport = bitmapExporter.export(drawOnImageView.getBitmap(), outputFile, BitmapExporter.Format.JPEG,
+                SOURCE_QUALITY, new BitmapExporter.Callback() {
+            @Override
+            public void onExportProgress(long bytesWritten) {
+            }
+
+            @Override
+            public void onExported(File file, BitmapExporter.ExportStats stats) {
+                pendingExport = null;
+                if (file.renameTo(sourceFile)) {
+                    isSourceSaved = true;
+                } else {
+                    file.delete();
+                    sourceFile.delete(); // An older source would not match the new strokes
+                }
+                onSaved.run();
+            }
+
+            @Override
+            public void onExportFailed(Exception e) {
+                pendingExport = null;
+                sourceFile.delete();
+                onSaved.run();
+            }
+        });
+    }
 
     // Utility method to convert dp to pixels
     private int dpToPx(int dp) {
@@ -192,37 +601,10 @@ public class DrawActivity extends Activity {
         return (int) (dp * density + 0.5f);
     }
 
-    @Override
-    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
-        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
-        if (requestCode == REQUEST_CODE_WRITE_EXTERNAL_STORAGE_PERMISSION) {
-            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                // Permission granted, proceed with cropping
-                cropImage();
-            } else {
-                // Permission denied, show a toast or handle accordingly
-                Toast.makeText(this, "Permission denied. Cannot crop image.", Toast.LENGTH_SHORT).show();
-            }
-        }
-    }
-
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        if (requestCode == PIC_CROP && resultCode == Activity.RESULT_OK) {
-            if (data != null) {
-                Uri croppedUri = data.getData();
-                try {
-                    Bitmap croppedBitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), croppedUri);
-
-                    // Set the cropped bitmap as the new image in the DrawOnImageView
-                    drawOnImageView.setImageBitmap(croppedBitmap);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } else if (requestCode == REQUEST_CODE_SAVE_IMAGE) {
+        if (requestCode == REQUEST_CODE_SAVE_IMAGE) {
             if (resultCode == Activity.RESULT_OK) {
                 Toast.makeText(this, "Image saved successfully", Toast.LENGTH_SHORT).show();
             } else {
@@ -232,36 +614,19 @@ public class DrawActivity extends Activity {
     }
 
     private void saveImageWithDrawings() {
-        Bitmap editedBitmap = drawOnImageView.getBitmap(); // Get the edited image with drawings
-
-        // Implement your save logic here using the editedBitmap
-        // For example, you can save it to the device's gallery or a custom file directory.
-        // You may use the imageUri obtained after saving the image for further actions.
-        Uri imageUri = saveBitmapToFile(editedBitmap, this);
-
-        if (imageUri != null) {
-            // Show the edited image with drawings in the gallery or an image viewer app
-            Intent intent = new Intent(Intent.ACTION_VIEW);
-            intent.setDataAndType(imageUri, "image/*");
-            startActivity(intent);
-        } else {
-            Toast.makeText(this, "Failed to save image", Toast.LENGTH_SHORT).show();
-        }
-    }
-
-    private Uri saveBitmapToFile(Bitmap bitmap, Context context) {
-        try {
-            File tempFile = File.createTempFile("temp_image", ".jpg", context.getCacheDir());
-            FileOutputStream outStream = new FileOutputStream(tempFile);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outStream);
-            outStream.flush();
-            outStream.close();
-            return FileProvider.getUriForFile(context, context.getApplicationContext().getPackageName() + ".fileprovider", tempFile);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
+        // Save the edited image with drawings, then show it in the gallery or an image viewer app
+        exportMergedBitmap(new ExportListener() {
+            @Override
+            public void onExported(Uri imageUri) {
+                Intent intent = new Intent(Intent.ACTION_VIEW);
+                intent.setDataAndType(imageUri, "image/*");
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                try {
+                    startActivity(intent);
+                } catch (ActivityNotFoundException e) {
+                    Toast.makeText(DrawActivity.this, "Image saved", Toast.LENGTH_SHORT).show(); // Still in the gallery
+                }
+            }
+        });
     }
 }
-
-
@@ -5,39 +5,112 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 
 import androidx.annotation.ColorInt;
 import androidx.appcompat.widget.AppCompatImageView;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Stack;
 
 public class DrawOnImageView extends AppCompatImageView {
-    private Bitmap imageBitmap;
-    private Bitmap drawingBitmap;
-    private Canvas drawingCanvas;
+    private static final int DEFAULT_STROKE_WIDTH = 5;
+    private static final int DEFAULT_ERASER_WIDTH = 24;
+    private static final int ERASER_PREVIEW_COLOR = 0x66808080; // Translucent grey trail while erasing
+    private static final float SELECT_RADIUS_DP = 12; // How close a tap has to be to select a stroke
+    private static final float TEXT_SIZE_SP = 20; // On screen at the zoom a label is added at
+    private static final float MAX_ZOOM = 8;
+
+    // What a touch does while drawing is enabled
+    public enum Tool {
+        DRAW(Stroke.Shape.FREEHAND), // Add a stroke
+        ERASE(null), // Remove every stroke the path touches on the active layer
+        SELECT(null), // Select the topmost stroke under a tap, which can then be deleted
+        LINE(Stroke.Shape.LINE), // Drag from one end to the other
+        ARROW(Stroke.Shape.ARROW), // Drag from the tail to the head
+        RECTANGLE(Stroke.Shape.RECTANGLE), // Drag from one corner to the opposite one
+        ELLIPSE(Stroke.Shape.ELLIPSE), // Drag across the rectangle it fills
+        TEXT(Stroke.Shape.TEXT); // Tap where a label starts; the text comes from the OnTextRequestListener
+
+        final Stroke.Shape shape; // What the tool adds, if anything
+
+        Tool(Stroke.Shape shape) {
+            this.shape = shape;
+        }
+    }
+
+    private DrawingDocument document; // Image, stroke history and stroke layers
+    private LayeredRenderer layeredRenderer; // Null below API 29, where everything is drawn every frame
+    private ImagePyramid imagePyramid; // Sharper tiles of the source file when zoomed in, if there is one
+
+    // The document is drawn scaled by zoom and moved by the translation; touches are mapped back, so
+    // strokes, crops and selections are all in image coordinates
+    private float zoom = 1; // View pixels per image pixel
+    private float translateX, translateY; // Position of the image's top left corner in the view
+    private ScaleGestureDetector scaleDetector;
+    private boolean isGesturing = false; // Zooming or panning until every finger is lifted
+    private float lastFocusX, lastFocusY;
+    private final RectF visibleRect = new RectF(); // Part of the image in view
+    private float minTouchDistance; // In view pixels
+
+    // Pending measurement that ends with the next frame drawn with an image
+    private DrawingMetrics.Operation nextFrameOperation;
+    private long nextFrameStart;
 
-    private Paint imagePaint;
-    private Paint drawPaint;
     private boolean isDrawingEnabled = false;
     private int drawingColor = Color.BLACK; // Default color is black
+    private int strokeWidth = DEFAULT_STROKE_WIDTH; // Width at full pressure, in image pixels
+    private boolean isPressureEnabled = true;
+    private Tool tool = Tool.DRAW;
+    private int eraserWidth = DEFAULT_ERASER_WIDTH;
 
-    private Path drawPath;
-    private List<DrawPath> drawPathList;
-    private Stack<DrawPath> undoneDrawPathStack; // Use a stack to store undone paths
+    private Stroke selectedStroke;
+    private float selectX, selectY; // Where the selecting tap was, in image coordinates
+    private float selectRadius; // In image pixels at the zoom of the selecting tap
+    private float selectTouchRadius; // In view pixels
+    private Paint selectionPaint;
 
-    private static class DrawPath {
-        Path path;
-        int color;
+    private StrokeBuilder strokeBuilder; // Smooths and decimates the stroke being drawn
+    private Stroke liveShape; // The shape being dragged out, replaced on every move
+    private float shapeStartX, shapeStartY;
+    private Paint textPaint; // Measures labels as they are added
+    private float textTouchSize; // TEXT_SIZE_SP in view pixels
+    private final RectF segmentBounds = new RectF();
+    private final RectF invalidBounds = new RectF();
 
-        DrawPath(Path path, int color) {
-            this.path = path;
-            this.color = color;
-        }
+    private final Rect dirtyRect = new Rect(); // Reused region for partial redraws
+
+    private boolean isCropping = false;
+    private final RectF cropRect = new RectF(); // Selected crop area in image coordinates
+    private float cropStartX, cropStartY;
+    private Paint cropPaint;
+    private Paint cropShadePaint;
+
+    private OnHistoryChangeListener historyChangeListener;
+    private OnTextRequestListener textRequestListener;
+
+    private final DrawingMetrics metrics = DrawingMetrics.getInstance();
+
+    // Notified of every change to the image or stroke history, e.g. to persist the session
+    public interface OnHistoryChangeListener {
+        void onStrokeAdded(Stroke stroke);
+
+        void onUndo();
+
+        void onRedo();
+
+        // The image was replaced or cropped, so anything derived from the old coordinates is stale
+        void onImageChanged();
+    }
+
+    // Asked for the text of a label when the text tool is tapped; answer with addText
+    public interface OnTextRequestListener {
+        void onTextRequested(float x, float y);
     }
 
     public DrawOnImageView(Context context, AttributeSet attrs) {
@@ -46,23 +119,138 @@ public class DrawOnImageView extends AppCompatImageView {
     }
 
     private void init() {
-        imagePaint = new Paint();
-        drawPaint = new Paint();
-        drawPaint.setStyle(Paint.Style.STROKE);
-        drawPaint.setStrokeWidth(5);
-        drawPathList = new ArrayList<>(); // Initialize the drawPathList
-        undoneDrawPathStack = new Stack<>(); // Initialize the undoneDrawPathStack
+        cropPaint = new Paint();
+        cropPaint.setStyle(Paint.Style.STROKE);
+        cropPaint.setStrokeWidth(3);
+        cropPaint.setColor(Color.WHITE);
+        cropShadePaint = new Paint();
+        cropShadePaint.setColor(0x88000000); // Translucent black over the area that will be cut away
+        selectionPaint = new Paint();
+        selectionPaint.setStyle(Paint.Style.STROKE);
+        selectionPaint.setStrokeWidth(2);
+        selectionPaint.setColor(0xFF2196F3);
+        selectTouchRadius = SELECT_RADIUS_DP * getResources().getDisplayMetrics().density;
+        textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        textTouchSize = TEXT_SIZE_SP * getResources().getDisplayMetrics().scaledDensity;
+        // Drop touch samples closer than 2dp on screen to the previous one
+        minTouchDistance = 2 * getResources().getDisplayMetrics().density;
+        strokeBuilder = new StrokeBuilder(minTouchDistance);
+        scaleDetector = new ScaleGestureDetector(getContext(), new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                if (!isGesturing) {
+                    return false;
+                }
+                zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        // Checkpoint every few strokes, using at most an eighth of the heap for checkpoints
+        document = new DrawingDocument(Runtime.getRuntime().maxMemory() / 8);
+        if (LayeredRenderer.isSupported()) {
+            layeredRenderer = new LayeredRenderer();
+        }
     }
 
     public void setImageBitmap(Bitmap bitmap) {
-        imageBitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
-        drawingBitmap = Bitmap.createBitmap(imageBitmap.getWidth(), imageBitmap.getHeight(), Bitmap.Config.ARGB_8888);
-        drawingCanvas = new Canvas(drawingBitmap);
+        document.setImage(bitmap);
+        setImagePyramid(null); // Tiles of the previous image
+        resetZoom();
+        strokeBuilder.cancel();
+        liveShape = null;
+        selectedStroke = null;
+        metrics.recordBitmapBytes(document.getBitmapByteCount());
+        invalidate();
+        if (historyChangeListener != null) {
+            historyChangeListener.onImageChanged();
+        }
+    }
+
+    // Restore a saved session: the image plus drawn strokes and the redo stack (next redo first)
+    public void restoreSession(Bitmap bitmap, List<Stroke> strokes, List<Stroke> undoneStrokes) {
+        document.restore(bitmap, strokes, undoneStrokes);
+        setImagePyramid(null);
+        resetZoom();
+        strokeBuilder.cancel();
+        liveShape = null;
+        selectedStroke = null;
+        metrics.recordBitmapBytes(document.getBitmapByteCount());
         invalidate();
     }
 
     public Bitmap getBitmap() {
-        return imageBitmap;
+        return document.getImage();
+    }
+
+    public List<Stroke> getStrokes() {
+        return document.getStrokes();
+    }
+
+    // Undone strokes, next redo first
+    public Collection<Stroke> getUndoneStrokes() {
+        return document.getUndoneStrokes();
+    }
+
+    public DrawingDocument getDocument() {
+        return document;
+    }
+
+    // Source of sharper tiles when zoomed in past the image resolution; the view releases it with the image
+    public void setImagePyramid(ImagePyramid pyramid) {
+        if (imagePyramid != null && imagePyramid != pyramid) {
+            imagePyramid.release();
+        }
+        imagePyramid = pyramid;
+        if (pyramid != null) {
+            pyramid.setOnTileLoadedListener(new ImagePyramid.OnTileLoadedListener() {
+                @Override
+                public void onTileLoaded() {
+                    invalidate();
+                }
+            });
+        }
+    }
+
+    public ImagePyramid getImagePyramid() {
+        return imagePyramid;
+    }
+
+    public float getZoom() {
+        return zoom;
+    }
+
+    // Show the whole image again, at its own size unless it is bigger than the view
+    public void resetZoom() {
+        zoom = getMinZoom();
+        translateX = 0;
+        translateY = 0;
+        invalidate();
+    }
+
+    // Record the time from startNanos until the next frame that shows the image under the given operation
+    public void recordUntilNextFrame(DrawingMetrics.Operation operation, long startNanos) {
+        nextFrameOperation = operation;
+        nextFrameStart = startNanos;
+        invalidate();
+    }
+
+    public void setOnHistoryChangeListener(OnHistoryChangeListener listener) {
+        historyChangeListener = listener;
+    }
+
+    public void setOnTextRequestListener(OnTextRequestListener listener) {
+        textRequestListener = listener;
+    }
+
+    // Add a label on the baseline from x, y in image coordinates, sized to read the same as at the current zoom
+    public void addText(String text, float x, float y) {
+        if (text.isEmpty() || !document.hasImage()) {
+            return;
+        }
+        int size = Math.max(1, Math.round(textTouchSize / zoom));
+        textPaint.setTextSize(size);
+        commitStroke(Stroke.text(text, x, y, textPaint.measureText(text), drawingColor, size));
+        invalidateBounds(dirtyRect);
     }
 
     public void enableDrawing() {
@@ -77,101 +265,523 @@ public class DrawOnImageView extends AppCompatImageView {
         drawingColor = color;
     }
 
+    public int getStrokeWidth() {
+        return strokeWidth;
+    }
+
+    // Applies to strokes started from now on
+    public void setStrokeWidth(int width) {
+        strokeWidth = Math.max(1, width);
+    }
+
+    // Pressure only varies the width for stylus input; finger pressure is too inconsistent between devices
+    public void setPressureEnabled(boolean enabled) {
+        isPressureEnabled = enabled;
+    }
+
+    // Add an empty layer on top and make it the one new strokes are drawn on
+    public int addLayer(String name) {
+        int index = document.addLayer(name);
+        document.setActiveLayer(index);
+        invalidate();
+        return index;
+    }
+
+    public int getLayerCount() {
+        return document.getLayerCount();
+    }
+
+    public int getActiveLayer() {
+        return document.getActiveLayer();
+    }
+
+    public void setActiveLayer(int index) {
+        document.setActiveLayer(index);
+        selectedStroke = null; // Selection only looks at the active layer
+        invalidate();
+    }
+
+    public void setLayerVisible(int index, boolean visible) {
+        document.getLayer(index).setVisible(visible);
+        invalidate();
+    }
+
+    public void setLayerAlpha(int index, int alpha) {
+        document.getLayer(index).setAlpha(alpha);
+        invalidate();
+    }
+
+    public void setLayerBlendMode(int index, PorterDuff.Mode mode) {
+        document.getLayer(index).setBlendMode(mode);
+        invalidate();
+    }
+
+    public Tool getTool() {
+        return tool;
+    }
+
+    public void setTool(Tool tool) {
+        this.tool = tool;
+        strokeBuilder.cancel();
+        liveShape = null;
+        selectedStroke = null;
+        invalidate();
+    }
+
+    // Width of the eraser path in image pixels
+    public void setEraserWidth(int width) {
+        eraserWidth = Math.max(1, width);
+    }
+
+    public boolean hasSelection() {
+        return selectedStroke != null;
+    }
+
+    // Remove the selected stroke; like any other eraser this can be undone
+    public void deleteSelection() {
+        if (selectedStroke == null) {
+            return;
+        }
+        // An eraser that removes the topmost stroke under the tap, which is exactly the selected one
+        Stroke tap = new Stroke(new float[]{selectX, selectY, 1}, 1, 0, Math.round(selectRadius * 2));
+        commitStroke(tap.toEraser(true));
+    }
+
+    public boolean isCropping() {
+        return isCropping;
+    }
+
+    // Start selecting a crop area; the whole image is selected until the user drags a new rectangle
+    public void startCrop() {
+        if (!document.hasImage()) {
+            return;
+        }
+        isCropping = true;
+        cropRect.set(0, 0, document.getWidth(), document.getHeight());
+        invalidate();
+    }
+
+    public void cancelCrop() {
+        isCropping = false;
+        invalidate();
+    }
+
+    // Cut the image down to the selected area in place; strokes are moved along with it so they stay editable
+    public boolean applyCrop() {
+        isCropping = false;
+        invalidate();
+
+        Rect area = new Rect();
+        cropRect.roundOut(area);
+        if (area.left <= 0 && area.top <= 0 && area.right >= document.getWidth() && area.bottom >= document.getHeight()) {
+            // Nothing is cut away, so keep the image, the undo checkpoints and the stored session as they are
+            return true;
+        }
+        if (!document.crop(area)) {
+            return false;
+        }
+        selectedStroke = null;
+        if (imagePyramid != null) {
+            imagePyramid.offsetOrigin(area.left, area.top); // The tiles stay where they are in the source
+        }
+        resetZoom();
+        metrics.recordBitmapBytes(document.getBitmapByteCount());
+        if (historyChangeListener != null) {
+            historyChangeListener.onImageChanged();
+        }
+        return true;
+    }
+
+    // Hand every bitmap held by the view back to the pool, e.g. when the activity is destroyed
+    public void release() {
+        document.release();
+        setImagePyramid(null);
+        if (layeredRenderer != null) {
+            layeredRenderer.release();
+        }
+    }
+
+    public void setHistoryMemoryBudget(long bytes) {
+        document.setHistoryMemoryBudget(bytes);
+    }
+
     public void undo() {
-        if (!drawPathList.isEmpty()) {
-            int lastIndex = drawPathList.size() - 1;
-            DrawPath lastDrawnPath = drawPathList.remove(lastIndex); // Remove the last drawn path from the list
-            undoneDrawPathStack.push(lastDrawnPath); // Push the path to the undoneDrawPathStack
-            redrawCanvas(); // Redraw the drawing canvas
+        long start = DrawingMetrics.now();
+        selectedStroke = null;
+        if (document.undo(dirtyRect) != null) {
+            metrics.record(DrawingMetrics.Operation.UNDO, start);
+            metrics.recordBitmapBytes(document.getBitmapByteCount());
+            invalidateBounds(dirtyRect); // Only the area under the removed stroke changes
+            if (historyChangeListener != null) {
+                historyChangeListener.onUndo();
+            }
         }
     }
 
     public void redo() {
-        if (!undoneDrawPathStack.isEmpty()) {
-            DrawPath undonePath = undoneDrawPathStack.pop(); // Pop the last undone path from the stack
-            drawPathList.add(undonePath); // Add the path to the drawPathList
-            redrawCanvas(); // Redraw the drawing canvas
+        long start = DrawingMetrics.now();
+        selectedStroke = null;
+        if (document.redo(dirtyRect) != null) {
+            metrics.record(DrawingMetrics.Operation.REDO, start);
+            invalidateBounds(dirtyRect);
+            if (historyChangeListener != null) {
+                historyChangeListener.onRedo();
+            }
         }
     }
 
-    private void redrawCanvas() {
-        // Clear the drawing canvas
-        drawingCanvas.drawColor(Color.TRANSPARENT, android.graphics.PorterDuff.Mode.CLEAR);
+    // Add a finished stroke or eraser to the document and report it
+    private void commitStroke(Stroke stroke) {
+        long start = DrawingMetrics.now();
+        selectedStroke = null;
+        document.addStroke(stroke, dirtyRect); // Draw the stroke into the tiles it covers
+        if (stroke.isEraser()) {
+            metrics.record(DrawingMetrics.Operation.ERASE, start);
+            invalidateBounds(dirtyRect); // Only where the erased strokes were
+        }
+        metrics.recordBitmapBytes(document.getBitmapByteCount());
+        if (historyChangeListener != null) {
+            historyChangeListener.onStrokeAdded(stroke);
+        }
+    }
+
+    // Invalidate an area given in image coordinates
+    private void invalidateBounds(RectF bounds) {
+        invalidBounds.set(bounds.left * zoom + translateX, bounds.top * zoom + translateY,
+                bounds.right * zoom + translateX, bounds.bottom * zoom + translateY);
+        invalidBounds.roundOut(dirtyRect);
+        invalidate(dirtyRect);
+    }
+
+    private void invalidateBounds(Rect bounds) {
+        invalidBounds.set(bounds);
+        invalidateBounds(invalidBounds);
+    }
 
-        // Draw all the paths stored in the drawPathList on the drawing canvas
-        for (DrawPath drawPath : drawPathList) {
-            drawPaint.setColor(drawPath.color); // Set the color for each path
-            drawingCanvas.drawPath(drawPath.path, drawPaint);
+    // Zoomed out as far as the whole image fits, but never further than its own size
+    private float getMinZoom() {
+        if (!document.hasImage() || getWidth() == 0 || getHeight() == 0) {
+            return 1;
         }
+        return Math.min(1, Math.min((float) getWidth() / document.getWidth(), (float) getHeight() / document.getHeight()));
+    }
 
+    private void zoomBy(float factor, float focusX, float focusY) {
+        float newZoom = Math.max(getMinZoom(), Math.min(MAX_ZOOM, zoom * factor));
+        // Keep the image point under the focus where it is
+        translateX = focusX - (focusX - translateX) * newZoom / zoom;
+        translateY = focusY - (focusY - translateY) * newZoom / zoom;
+        zoom = newZoom;
+        constrainTranslation();
         invalidate();
     }
 
-    public Bitmap getMergedBitmap() {
-        Bitmap mergedBitmap = Bitmap.createBitmap(imageBitmap.getWidth(), imageBitmap.getHeight(), Bitmap.Config.ARGB_8888);
-        Canvas mergedCanvas = new Canvas(mergedBitmap);
+    // Keep the image covering the view along each axis where it is big enough, and at the edge otherwise
+    private void constrainTranslation() {
+        translateX = constrain(translateX, document.getWidth() * zoom, getWidth());
+        translateY = constrain(translateY, document.getHeight() * zoom, getHeight());
+    }
 
-        // Draw the original image
-        if (imageBitmap != null) {
-            mergedCanvas.drawBitmap(imageBitmap, 0, 0, imagePaint);
-        }
+    private static float constrain(float translation, float imageSize, float viewSize) {
+        return imageSize <= viewSize ? 0 : Math.max(viewSize - imageSize, Math.min(0, translation));
+    }
 
-        // Draw the drawing canvas on top of the original image
-        if (drawingBitmap != null) {
-            mergedCanvas.drawBitmap(drawingBitmap, 0, 0, null);
-        }
+    private float toImageX(float viewX) {
+        return (viewX - translateX) / zoom;
+    }
+
+    private float toImageY(float viewY) {
+        return (viewY - translateY) / zoom;
+    }
 
+    // The returned bitmap is reused by the next call, so callers must be done with it (and not modify it) before then
+    public Bitmap getMergedBitmap() {
+        long start = DrawingMetrics.now();
+        Bitmap mergedBitmap = document.getMergedBitmap();
+        metrics.record(DrawingMetrics.Operation.MERGE, start);
+        metrics.recordBitmapBytes(document.getBitmapByteCount());
         return mergedBitmap;
     }
 
+    public void releaseMergedBitmap() {
+        document.releaseMergedBitmap();
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
+        long start = DrawingMetrics.now();
+        if (getDrawable() != null) {
+            super.onDraw(canvas); // The image is drawn by the document, so normally there is nothing here
+        }
+
+        canvas.save();
+        canvas.translate(translateX, translateY);
+        canvas.scale(zoom, zoom);
+
+        // Sharper tiles over the image while zoomed in further than its resolution
+        DrawingDocument.ImageOverlay overlay = null;
+        if (imagePyramid != null) {
+            visibleRect.set(toImageX(0), toImageY(0), toImageX(getWidth()), toImageY(getHeight()));
+            imagePyramid.setViewport(visibleRect, zoom);
+            overlay = imagePyramid.hasDetail() ? imagePyramid : null;
+        }
 
-        // Draw the original image
-        if (imageBitmap != null) {
-            canvas.drawBitmap(imageBitmap, 0, 0, imagePaint);
+        // Draw the image and the layers, with the current path over the active layer if drawing is enabled
+        StrokeRuns liveRuns = null;
+        if (isDrawingEnabled && strokeBuilder.isActive()) {
+            liveRuns = strokeBuilder.getRuns();
+        } else if (isDrawingEnabled && liveShape != null) {
+            liveRuns = liveShape.getRuns(); // Its outline, until the shape itself is drawn when committed
         }
+        int liveColor = tool == Tool.ERASE ? ERASER_PREVIEW_COLOR : drawingColor;
+        if (layeredRenderer != null && canvas.isHardwareAccelerated()) {
+            // Replays the cached nodes; only the live path is new in a frame drawn mid-stroke
+            layeredRenderer.draw(canvas, document, overlay, liveRuns, liveColor);
+        } else {
+            document.drawTo(canvas, overlay, liveRuns, liveColor);
+        }
+
+        // Outlines keep their on-screen width at any zoom
+        selectionPaint.setStrokeWidth(2 / zoom);
+        cropPaint.setStrokeWidth(3 / zoom);
+        if (selectedStroke != null) {
+            canvas.drawRect(selectedStroke.getLeft(), selectedStroke.getTop(), selectedStroke.getRight(),
+                    selectedStroke.getBottom(), selectionPaint);
+        }
+
+        // Shade everything outside the crop selection
+        if (isCropping && document.hasImage()) {
+            float width = document.getWidth();
+            float height = document.getHeight();
+            canvas.drawRect(0, 0, width, cropRect.top, cropShadePaint);
+            canvas.drawRect(0, cropRect.bottom, width, height, cropShadePaint);
+            canvas.drawRect(0, cropRect.top, cropRect.left, cropRect.bottom, cropShadePaint);
+            canvas.drawRect(cropRect.right, cropRect.top, width, cropRect.bottom, cropShadePaint);
+            canvas.drawRect(cropRect, cropPaint);
+        }
+        canvas.restore();
+        metrics.record(DrawingMetrics.Operation.DRAW, start);
+        if (nextFrameOperation != null && document.hasImage()) {
+            metrics.record(nextFrameOperation, nextFrameStart);
+            nextFrameOperation = null;
+        }
+    }
 
-        // Draw the drawing canvas on top of the original image
-        if (drawingBitmap != null) {
-            canvas.drawBitmap(drawingBitmap, 0, 0, null);
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        if (oldWidth == 0 || oldHeight == 0) {
+            resetZoom(); // The image may have been set before the view knew how much room it has
+        } else {
+            zoom = Math.max(getMinZoom(), zoom);
+            constrainTranslation();
         }
+    }
 
-        // Draw the current path if drawing is enabled
-        if (isDrawingEnabled && drawPath != null) {
-            drawPaint.setColor(drawingColor);
-            canvas.drawPath(drawPath, drawPaint);
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (layeredRenderer != null) {
+            layeredRenderer.release(); // Free the layer texture while the view is off screen
         }
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        if (isDrawingEnabled) {
-            float x = event.getX();
-            float y = event.getY();
+        boolean isZooming = isZoomGesture(event);
+        scaleDetector.onTouchEvent(event); // Sees every event so it always knows where the fingers are
+        if (isZooming) {
+            return onZoomTouchEvent(event);
+        }
+        if (isCropping) {
+            return onCropTouchEvent(event);
+        }
 
-            switch (event.getAction()) {
+        // Nothing to draw on until the image has been decoded
+        if (isDrawingEnabled && document.hasImage()) {
+            if (tool == Tool.SELECT) {
+                return onSelectTouchEvent(event);
+            }
+            if (tool == Tool.TEXT) {
+                return onTextTouchEvent(event);
+            }
+            if (tool.shape != null && tool.shape != Stroke.Shape.FREEHAND) {
+                return onShapeTouchEvent(event);
+            }
+            long start = DrawingMetrics.now();
+            float x = toImageX(event.getX());
+            float y = toImageY(event.getY());
+
+            switch (event.getActionMasked()) {
                 case MotionEvent.ACTION_DOWN:
-                    drawPath = new Path();
-                    drawPath.moveTo(x, y);
+                    strokeBuilder.setMinDistance(minTouchDistance / zoom);
+                    if (tool == Tool.ERASE) {
+                        strokeBuilder.begin(x, y, 1, eraserWidth, false);
+                    } else {
+                        boolean isPressureSensitive = isPressureEnabled
+                                && event.getToolType(0) == MotionEvent.TOOL_TYPE_STYLUS;
+                        strokeBuilder.begin(x, y, event.getPressure(), strokeWidth, isPressureSensitive);
+                    }
                     break;
                 case MotionEvent.ACTION_MOVE:
-                    drawPath.lineTo(x, y);
+                    // Fast moves arrive batched; replay every historical sample so no part of the stroke is lost
+                    for (int h = 0; h < event.getHistorySize(); h++) {
+                        strokeBuilder.addPoint(toImageX(event.getHistoricalX(h)), toImageY(event.getHistoricalY(h)),
+                                event.getHistoricalPressure(h));
+                    }
+                    strokeBuilder.addPoint(x, y, event.getPressure());
                     break;
                 case MotionEvent.ACTION_UP:
-                    drawPath.lineTo(x, y);
-                    drawPaint.setColor(drawingColor);
-                    drawPathList.add(new DrawPath(drawPath, drawingColor));
-                    drawingCanvas.drawPath(drawPath, drawPaint); // Draw the current path on the drawing canvas
-                    drawPath = null; // Set drawPath to null after drawing
-                    undoneDrawPathStack.clear(); // Clear the undoneDrawPathStack when a new path is drawn
+                    Stroke stroke = strokeBuilder.end(x, y, event.getPressure(), drawingColor);
+                    if (stroke != null) {
+                        commitStroke(tool == Tool.ERASE ? stroke.toEraser(false) : stroke);
+                    }
                     break;
+                case MotionEvent.ACTION_CANCEL:
+                    strokeBuilder.cancel();
+                    invalidate(); // The partial stroke may cover any part of the view
+                    return true;
             }
 
-            invalidate();
+            // Only the segments added by this event need to be redrawn
+            if (strokeBuilder.takeDirtyBounds(segmentBounds)) {
+                // Round caps and joins reach half the full-pressure width past the samples, plus anti-aliasing
+                float inset = strokeBuilder.getWidth() / 2f + 1;
+                segmentBounds.inset(-inset, -inset);
+                invalidateBounds(segmentBounds);
+            }
+            metrics.record(DrawingMetrics.Operation.TOUCH, start);
             return true;
         }
         return false;
     }
+
+    // A tap selects the topmost stroke under it on the active layer, or clears the selection
+    private boolean onSelectTouchEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+            selectX = toImageX(event.getX());
+            selectY = toImageY(event.getY());
+            selectRadius = selectTouchRadius / zoom;
+            selectedStroke = document.hitTest(selectX, selectY, selectRadius);
+            invalidate(); // The previous selection may have been anywhere
+        }
+        return true;
+    }
+
+    // Dragging sizes a shape between the touch down point and the current point; lifting adds it
+    private boolean onShapeTouchEvent(MotionEvent event) {
+        long start = DrawingMetrics.now();
+        float x = toImageX(event.getX());
+        float y = toImageY(event.getY());
+
+        invalidateLiveShape(); // Wherever the previous outline was
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                shapeStartX = x;
+                shapeStartY = y;
+                liveShape = null;
+                break;
+            case MotionEvent.ACTION_MOVE:
+                liveShape = Stroke.shape(tool.shape, shapeStartX, shapeStartY, x, y, drawingColor, strokeWidth);
+                invalidateLiveShape();
+                break;
+            case MotionEvent.ACTION_UP:
+                liveShape = null;
+                // A tap too short to be a drag adds nothing
+                if (Math.hypot(x - shapeStartX, y - shapeStartY) * zoom >= minTouchDistance) {
+                    commitStroke(Stroke.shape(tool.shape, shapeStartX, shapeStartY, x, y, drawingColor, strokeWidth));
+                    invalidateBounds(dirtyRect);
+                }
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                liveShape = null;
+                break;
+        }
+        metrics.record(DrawingMetrics.Operation.TOUCH, start);
+        return true;
+    }
+
+    private void invalidateLiveShape() {
+        if (liveShape != null) {
+            segmentBounds.set(liveShape.getLeft(), liveShape.getTop(), liveShape.getRight(), liveShape.getBottom());
+            invalidateBounds(segmentBounds);
+        }
+    }
+
+    // A tap asks for the text of a label starting there
+    private boolean onTextTouchEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_UP && textRequestListener != null) {
+            textRequestListener.onTextRequested(toImageX(event.getX()), toImageY(event.getY()));
+        }
+        return true;
+    }
+
+    // Dragging selects a new crop rectangle between the touch down point and the current point
+    private boolean onCropTouchEvent(MotionEvent event) {
+        float x = Math.max(0, Math.min(toImageX(event.getX()), document.getWidth()));
+        float y = Math.max(0, Math.min(toImageY(event.getY()), document.getHeight()));
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                cropStartX = x;
+                cropStartY = y;
+                break;
+            case MotionEvent.ACTION_MOVE:
+            case MotionEvent.ACTION_UP:
+                cropRect.set(Math.min(cropStartX, x), Math.min(cropStartY, y),
+                        Math.max(cropStartX, x), Math.max(cropStartY, y));
+                invalidate();
+                break;
+        }
+        return true;
+    }
+
+    // A second finger turns any touch into zooming and panning until every finger is lifted; with drawing
+    // off, a single finger pans as well
+    private boolean isZoomGesture(MotionEvent event) {
+        int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            isGesturing = !isDrawingEnabled && !isCropping && document.hasImage();
+        } else if (action == MotionEvent.ACTION_POINTER_DOWN && !isGesturing && document.hasImage()) {
+            isGesturing = true;
+            strokeBuilder.cancel(); // The first finger was not meant as a stroke
+            liveShape = null;
+            invalidate();
+        }
+        return isGesturing;
+    }
+
+    // Pans by how far the midpoint of the fingers moves; the scale detector takes care of the pinch
+    private boolean onZoomTouchEvent(MotionEvent event) {
+        int action = event.getActionMasked();
+        int liftedIndex = action == MotionEvent.ACTION_POINTER_UP ? event.getActionIndex() : -1;
+        float sumX = 0, sumY = 0;
+        int count = 0;
+        for (int i = 0; i < event.getPointerCount(); i++) {
+            if (i != liftedIndex) {
+                sumX += event.getX(i);
+                sumY += event.getY(i);
+                count++;
+            }
+        }
+        float focusX = sumX / count;
+        float focusY = sumY / count;
+
+        switch (action) {
+            case MotionEvent.ACTION_MOVE:
+                translateX += focusX - lastFocusX;
+                translateY += focusY - lastFocusY;
+                constrainTranslation();
+                invalidate();
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                isGesturing = false;
+                break;
+        }
+        // The midpoint jumps whenever a finger goes down or up, so always continue from the current one
+        lastFocusX = focusX;
+        lastFocusY = focusY;
+        return true;
+    }
 }
@@ -0,0 +1,645 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The image being annotated together with its stroke history and a stack of stroke layers.
+ *
+ * This is the rendering core behind DrawOnImageView. It does not depend on a View, so the same code
+ * can be driven headless (benchmarks, batch rendering). Methods that change the drawing report the
+ * area that needs to be redrawn through a Rect supplied by the caller.
+ *
+ * New strokes go to the active layer. Everything below the active layer and everything above it are
+ * kept as flattened composites, so while a stroke is drawn only the active layer is composited tile by
+ * tile. Each of the three parts has a version that changes with its content, which callers such as
+ * LayeredRenderer use to keep caches of their own.
+ */
+public class DrawingDocument {
+
+    private final BitmapPool bitmapPool = BitmapPool.getInstance();
+    private final PaintCache paintCache = PaintCache.getInstance();
+    private final UndoHistory<Stroke> history;
+    private StrokeIndex strokeIndex = new StrokeIndex(0, 0); // Grid over the strokes in the history
+
+    private Bitmap imageBitmap;
+    private final List<DocumentLayer> layers = new ArrayList<>();
+    private int activeLayer;
+    private long imageVersion = DocumentLayer.nextVersion();
+    private long structureVersion = DocumentLayer.nextVersion(); // Renewed when layers are added or the active layer changes
+
+    // Flattened composites, re-rendered in place when their version no longer matches
+    private Bitmap belowCache; // The visible layers below the active one, with the image unless drawn with an overlay
+    private long belowCacheVersion = -1;
+    private boolean belowCacheHasImage;
+    private Bitmap aboveCache; // The visible layers above the active one
+    private long aboveCacheVersion = -1;
+    private Bitmap mergedBitmap; // Cached result of getMergedBitmap
+    private long mergedBitmapVersion = -1;
+
+    private final Paint imagePaint = new Paint();
+    private final RectF strokeBounds = new RectF();
+
+    // Drawn over the image and under the layers, e.g. sharper tiles of the part of the image in view
+    public interface ImageOverlay {
+        void draw(Canvas canvas);
+    }
+
+    public DrawingDocument(long historyMemoryBudget) {
+        history = new UndoHistory<>(UndoHistory.DEFAULT_CHECKPOINT_INTERVAL, historyMemoryBudget);
+    }
+
+    // Replace the image and start with a single empty layer; the document takes ownership of the bitmap
+    public void setImage(Bitmap bitmap) {
+        if (imageBitmap != null && imageBitmap != bitmap) {
+            bitmapPool.put(imageBitmap);
+        }
+        // The image layer is only ever drawn, so reuse the decoded bitmap instead of copying it; strokes go
+        // to the layers, so an opaque RGB_565 image is fine as well
+        Bitmap.Config config = bitmap.getConfig();
+        imageBitmap = config == Bitmap.Config.ARGB_8888 || config == Bitmap.Config.RGB_565
+                ? bitmap : bitmap.copy(Bitmap.Config.ARGB_8888, true);
+        history.clear(); // Strokes and checkpoints belong to the previous image
+        strokeIndex = new StrokeIndex(getWidth(), getHeight());
+        for (DocumentLayer layer : layers) {
+            layer.release();
+        }
+        layers.clear();
+        layers.add(new DocumentLayer("Layer 1", getWidth(), getHeight()));
+        activeLayer = 0;
+        imageVersion = DocumentLayer.nextVersion();
+        structureVersion = DocumentLayer.nextVersion();
+        releaseCaches();
+    }
+
+    // Restore a saved session: the image plus drawn strokes and the redo stack (next redo first)
+    public void restore(Bitmap bitmap, List<Stroke> strokes, List<Stroke> undoneStrokes) {
+        setImage(bitmap);
+        for (Stroke stroke : strokes) {
+            ensureLayer(stroke.getLayer());
+            history.add(stroke);
+            strokeIndex.add(stroke);
+            if (stroke.isEraser()) {
+                markErased(stroke); // Erasers are replayed against the strokes before them
+            }
+        }
+        for (Stroke stroke : undoneStrokes) {
+            ensureLayer(stroke.getLayer());
+            history.add(stroke);
+        }
+        for (int i = 0; i < undoneStrokes.size(); i++) {
+            history.undo();
+        }
+        // One pass over the restored strokes; checkpoints are taken again as drawing continues
+        rebuildLayers();
+    }
+
+    public boolean hasImage() {
+        return imageBitmap != null;
+    }
+
+    public Bitmap getImage() {
+        return imageBitmap;
+    }
+
+    public int getWidth() {
+        return imageBitmap != null ? imageBitmap.getWidth() : 0;
+    }
+
+    public int getHeight() {
+        return imageBitmap != null ? imageBitmap.getHeight() : 0;
+    }
+
+    public List<Stroke> getStrokes() {
+        return history.getStrokes();
+    }
+
+    // Undone strokes, next redo first
+    public Collection<Stroke> getUndoneStrokes() {
+        return history.getUndoneStrokes();
+    }
+
+    public UndoHistory<Stroke> getHistory() {
+        return history;
+    }
+
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    // Layer properties can be changed directly; the caches notice through the layer version
+    public DocumentLayer getLayer(int index) {
+        return layers.get(index);
+    }
+
+    public int getActiveLayer() {
+        return activeLayer;
+    }
+
+    public void setActiveLayer(int index) {
+        if (index < 0 || index >= layers.size()) {
+            throw new IndexOutOfBoundsException("No layer " + index);
+        }
+        if (activeLayer != index) {
+            activeLayer = index;
+            structureVersion = DocumentLayer.nextVersion(); // Layers move between the composites below and above
+        }
+    }
+
+    // Add an empty layer on top of the stack and return its index
+    public int addLayer(String name) {
+        if (imageBitmap == null) {
+            throw new IllegalStateException("No image");
+        }
+        if (layers.size() >= Stroke.MAX_LAYERS) {
+            throw new IllegalStateException("Too many layers");
+        }
+        layers.add(new DocumentLayer(name, getWidth(), getHeight()));
+        structureVersion = DocumentLayer.nextVersion();
+        return layers.size() - 1;
+    }
+
+    // Pixel memory held by the image, the layers, the undo checkpoints and the cached composites
+    public long getBitmapByteCount() {
+        long bytes = history.getCheckpointBytes();
+        if (imageBitmap != null) {
+            bytes += imageBitmap.getAllocationByteCount();
+        }
+        for (DocumentLayer layer : layers) {
+            bytes += layer.getTiles().getByteCount();
+        }
+        for (Bitmap cache : new Bitmap[]{belowCache, aboveCache, mergedBitmap}) {
+            if (cache != null) {
+                bytes += cache.getAllocationByteCount();
+            }
+        }
+        return bytes;
+    }
+
+    public void setHistoryMemoryBudget(long bytes) {
+        history.setMemoryBudget(bytes);
+    }
+
+    // Commit a finished stroke to the active layer and rasterize it, or apply it if it is an eraser
+    public void addStroke(Stroke stroke, Rect dirty) {
+        stroke.setLayer(activeLayer);
+        history.add(stroke); // Also clears the redo stack
+        strokeIndex.add(stroke);
+        apply(stroke, dirty);
+        maybeCheckpoint();
+    }
+
+    public Stroke undo(Rect dirty) {
+        Stroke lastStroke = history.undo(); // Move the last drawn stroke to the redo stack
+        if (lastStroke != null) {
+            strokeIndex.removeLast();
+            if (lastStroke.isEraser()) {
+                // Bring back what the eraser removed, redrawing only where those strokes were
+                for (int index : lastStroke.getErasedIndices()) {
+                    history.get(index).setErased(false);
+                }
+                redrawErased(lastStroke, dirty);
+            } else {
+                // Only the area under the removed stroke changes, and only on its own layer
+                redrawRegion(getBounds(lastStroke, new RectF()), dirty, lastStroke.getLayer());
+            }
+        }
+        return lastStroke;
+    }
+
+    public Stroke redo(Rect dirty) {
+        Stroke undoneStroke = history.redo(); // Restore the last undone stroke
+        if (undoneStroke != null) {
+            strokeIndex.add(undoneStroke);
+            apply(undoneStroke, dirty);
+        }
+        return undoneStroke;
+    }
+
+    // The topmost visible stroke on the active layer within the radius of a point, or null
+    public Stroke hitTest(float x, float y, float radius) {
+        int index = strokeIndex.hitTest(x, y, radius, activeLayer);
+        return index >= 0 ? history.get(index) : null;
+    }
+
+    // Cut the image down to the given area in place; strokes are moved along with it so they stay editable
+    public boolean crop(Rect area) {
+        if (imageBitmap == null || !area.intersect(0, 0, getWidth(), getHeight())
+                || area.width() < 2 || area.height() < 2) {
+            return false;
+        }
+
+        // Copy the area into a pooled bitmap so the previous image memory can be reused
+        Bitmap croppedBitmap = bitmapPool.get(area.width(), area.height(), imageBitmap.getConfig());
+        new Canvas(croppedBitmap).drawBitmap(imageBitmap, -area.left, -area.top, null);
+        bitmapPool.put(imageBitmap);
+        imageBitmap = croppedBitmap;
+        imageVersion = DocumentLayer.nextVersion();
+
+        for (Stroke stroke : history.getStrokes()) {
+            stroke.offset(-area.left, -area.top);
+        }
+        for (Stroke stroke : history.getUndoneStrokes()) {
+            stroke.offset(-area.left, -area.top);
+        }
+        history.clearCheckpoints(); // The rasters no longer line up with the moved strokes
+        strokeIndex = new StrokeIndex(getWidth(), getHeight());
+        for (Stroke stroke : history.getStrokes()) {
+            strokeIndex.add(stroke); // Which strokes are erased does not change with the offset
+        }
+
+        for (DocumentLayer layer : layers) {
+            layer.resize(getWidth(), getHeight());
+        }
+        releaseCaches();
+        rebuildLayers();
+        return true;
+    }
+
+    // Versions of the three composited parts; each changes whenever that part would draw differently
+    public long getBelowVersion() {
+        return Math.max(imageVersion, newestVersion(0, activeLayer));
+    }
+
+    public long getActiveVersion() {
+        return newestVersion(activeLayer, activeLayer + 1);
+    }
+
+    public long getAboveVersion() {
+        return newestVersion(activeLayer + 1, layers.size());
+    }
+
+    // Draw the image and every visible layer in image coordinates
+    public void drawTo(Canvas canvas) {
+        drawTo(canvas, null, 0);
+    }
+
+    // Same, with a stroke in progress drawn over the active layer
+    public void drawTo(Canvas canvas, StrokeRuns liveRuns, int liveColor) {
+        drawTo(canvas, null, liveRuns, liveColor);
+    }
+
+    // Same, with an optional overlay between the image and the layers
+    public void drawTo(Canvas canvas, ImageOverlay overlay, StrokeRuns liveRuns, int liveColor) {
+        if (imageBitmap == null) {
+            return;
+        }
+        if (overlay != null) {
+            drawImage(canvas);
+            overlay.draw(canvas);
+            drawBelowCached(canvas, false);
+        } else {
+            drawBelowCached(canvas, true);
+        }
+        drawActiveLayer(canvas);
+        if (liveRuns != null) {
+            liveRuns.draw(canvas, liveColor, paintCache);
+        }
+        drawAboveCached(canvas);
+    }
+
+    public void drawImage(Canvas canvas) {
+        if (imageBitmap != null) {
+            canvas.drawBitmap(imageBitmap, 0, 0, imagePaint);
+        }
+    }
+
+    // The image and the visible layers under the active layer, without caching
+    public void drawBelowActive(Canvas canvas) {
+        drawImage(canvas);
+        drawLayersBelowActive(canvas);
+    }
+
+    // Only the visible layers under the active layer, for drawing over the image and an overlay
+    public void drawLayersBelowActive(Canvas canvas) {
+        for (int i = 0; i < activeLayer && i < layers.size(); i++) {
+            layers.get(i).drawTo(canvas);
+        }
+    }
+
+    public void drawActiveLayer(Canvas canvas) {
+        if (activeLayer < layers.size()) {
+            layers.get(activeLayer).drawTo(canvas);
+        }
+    }
+
+    // The visible layers over the active layer, without caching
+    public void drawAboveActive(Canvas canvas) {
+        for (int i = activeLayer + 1; i < layers.size(); i++) {
+            layers.get(i).drawTo(canvas);
+        }
+    }
+
+    // Whether the layers above the active one can be flattened on their own and composited afterwards,
+    // which holds unless one of them blends with what is underneath
+    public boolean isAboveFlattenable() {
+        return isFlattenable(activeLayer + 1, layers.size());
+    }
+
+    // The same for the layers below the active one without the image under them
+    public boolean isBelowFlattenable() {
+        return isFlattenable(0, activeLayer);
+    }
+
+    // The image with every visible layer flattened onto it, for export. This is one image-sized bitmap:
+    // the tiles are drawn into it, not streamed, since the platform encoders only compress whole bitmaps.
+    // The document image is decoded at view size, so this stays bounded by the screen rather than the photo.
+    // The returned bitmap is reused by the next call, so callers must be done with it (and not modify it) before then
+    public Bitmap getMergedBitmap() {
+        long version = Math.max(getBelowVersion(), Math.max(getActiveVersion(), getAboveVersion()));
+        if (mergedBitmap != null && mergedBitmapVersion == version) {
+            return mergedBitmap;
+        }
+
+        if (mergedBitmap != null && (mergedBitmap.getWidth() != getWidth() || mergedBitmap.getHeight() != getHeight())) {
+            bitmapPool.put(mergedBitmap);
+            mergedBitmap = null;
+        }
+        if (mergedBitmap == null) {
+            mergedBitmap = bitmapPool.get(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+        } else {
+            mergedBitmap.eraseColor(Color.TRANSPARENT);
+        }
+        mergedBitmapVersion = version;
+
+        // Flattened through the same composites the view draws from
+        drawTo(new Canvas(mergedBitmap));
+        return mergedBitmap;
+    }
+
+    // Hand the merged bitmap back to the pool once an export is done with it, instead of holding it
+    // until the next one
+    public void releaseMergedBitmap() {
+        bitmapPool.put(mergedBitmap);
+        mergedBitmap = null;
+        mergedBitmapVersion = -1;
+    }
+
+    // Hand every bitmap held by the document back to the pool
+    public void release() {
+        history.clear();
+        strokeIndex = new StrokeIndex(0, 0);
+        for (DocumentLayer layer : layers) {
+            layer.release();
+        }
+        layers.clear();
+        releaseCaches();
+        bitmapPool.put(imageBitmap);
+        imageBitmap = null;
+        imageVersion = DocumentLayer.nextVersion();
+    }
+
+    private void drawBelowCached(Canvas canvas, boolean withImage) {
+        if (!hasVisibleLayer(0, activeLayer)) {
+            if (withImage) {
+                drawImage(canvas); // Nothing to flatten onto the image
+            }
+            return;
+        }
+        if (!withImage && !isBelowFlattenable()) {
+            drawLayersBelowActive(canvas); // They have to blend with what was drawn under them
+            return;
+        }
+        // Switching between drawing with and without an overlay re-renders the cache once
+        boolean isStale = belowCacheVersion != getBelowVersion() || belowCacheHasImage != withImage;
+        if (belowCache == null) {
+            belowCache = bitmapPool.get(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+        } else if (isStale) {
+            belowCache.eraseColor(Color.TRANSPARENT);
+        }
+        if (isStale) {
+            Canvas cacheCanvas = new Canvas(belowCache);
+            if (withImage) {
+                drawImage(cacheCanvas);
+            }
+            drawLayersBelowActive(cacheCanvas);
+            belowCacheVersion = getBelowVersion();
+            belowCacheHasImage = withImage;
+        }
+        canvas.drawBitmap(belowCache, 0, 0, null);
+    }
+
+    private void drawAboveCached(Canvas canvas) {
+        if (countVisibleLayers(activeLayer + 1, layers.size()) < 2 || !isAboveFlattenable()) {
+            drawAboveActive(canvas); // A single layer is already one composite per tile
+            return;
+        }
+        long version = getAboveVersion();
+        if (aboveCache == null) {
+            aboveCache = bitmapPool.get(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+        } else if (aboveCacheVersion != version) {
+            aboveCache.eraseColor(Color.TRANSPARENT);
+        }
+        if (aboveCacheVersion != version) {
+            drawAboveActive(new Canvas(aboveCache));
+            aboveCacheVersion = version;
+        }
+        canvas.drawBitmap(aboveCache, 0, 0, null);
+    }
+
+    // Unless a layer in the range blends with what is underneath
+    private boolean isFlattenable(int from, int to) {
+        for (int i = from; i < to && i < layers.size(); i++) {
+            DocumentLayer layer = layers.get(i);
+            if (layer.isVisible() && !layer.isSourceOver()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasVisibleLayer(int from, int to) {
+        return countVisibleLayers(from, to) > 0;
+    }
+
+    private int countVisibleLayers(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to && i < layers.size(); i++) {
+            if (layers.get(i).isVisible()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Layer versions come from one increasing sequence, so the newest one changes with any layer in the range
+    private long newestVersion(int from, int to) {
+        long version = structureVersion;
+        for (int i = from; i < to && i < layers.size(); i++) {
+            version = Math.max(version, layers.get(i).getVersion());
+        }
+        return version;
+    }
+
+    private void releaseCaches() {
+        bitmapPool.put(belowCache);
+        belowCache = null;
+        belowCacheVersion = -1;
+        bitmapPool.put(aboveCache);
+        aboveCache = null;
+        aboveCacheVersion = -1;
+        releaseMergedBitmap();
+    }
+
+    private void ensureLayer(int index) {
+        while (layers.size() <= index) {
+            layers.add(new DocumentLayer("Layer " + (layers.size() + 1), getWidth(), getHeight()));
+            structureVersion = DocumentLayer.nextVersion();
+        }
+    }
+
+    // Draw every visible stroke into its (empty) layer, e.g. after the layers were recreated
+    private void rebuildLayers() {
+        for (Stroke stroke : history.getStrokes()) {
+            if (!stroke.isEraser() && !stroke.isErased()) {
+                drawStroke(stroke, null);
+            }
+        }
+    }
+
+    // Draw a stroke that has just become the topmost one, or apply it if it is an eraser
+    private void apply(Stroke stroke, Rect dirty) {
+        if (stroke.isEraser()) {
+            markErased(stroke);
+            redrawErased(stroke, dirty);
+        } else {
+            // The stroke is on top of everything else on its layer, so it can simply be drawn over it
+            drawStroke(stroke, null);
+            strokeBounds.roundOut(dirty);
+        }
+    }
+
+    // Find and hide the strokes an eraser at the top of the history touches
+    private void markErased(Stroke eraser) {
+        int[] erased;
+        float radius = eraser.getWidth() / 2f;
+        if (eraser.isTopmostOnly()) {
+            int index = strokeIndex.hitTest(eraser.getX(0), eraser.getY(0), radius, eraser.getLayer());
+            erased = index >= 0 ? new int[]{index} : new int[0];
+        } else {
+            erased = strokeIndex.findAlong(eraser, radius, eraser.getLayer());
+        }
+        for (int index : erased) {
+            history.get(index).setErased(true);
+        }
+        eraser.setErasedIndices(erased);
+    }
+
+    // Redraw the area of the strokes an eraser hid (or showed again) in one pass, since they are usually
+    // close together and would otherwise replay the same strokes underneath them several times
+    private void redrawErased(Stroke eraser, Rect dirty) {
+        int[] erased = eraser.getErasedIndices();
+        if (erased.length == 0) {
+            dirty.setEmpty();
+            return;
+        }
+        RectF region = getBounds(history.get(erased[0]), new RectF());
+        for (int index : erased) {
+            Stroke stroke = history.get(index);
+            region.union(stroke.getLeft(), stroke.getTop(), stroke.getRight(), stroke.getBottom());
+        }
+        redrawRegion(region, dirty, eraser.getLayer());
+    }
+
+    // Rebuild the given area of one layer from the nearest checkpoint plus the strokes drawn after it
+    private void redrawRegion(RectF region, Rect dirty, int layerIndex) {
+        if (layerIndex >= layers.size()) {
+            return;
+        }
+        DocumentLayer layer = layers.get(layerIndex);
+        TiledLayer tiles = layer.getTiles();
+
+        int count = history.size();
+        int start = history.nearestCheckpointIndex(count);
+        // A checkpoint taken before an eraser was applied still shows the strokes it erased, so start
+        // from one taken before them if any of those strokes reach into the region
+        for (int i = count - 1; i >= start; i--) {
+            Stroke entry = history.get(i);
+            if (!entry.isEraser()) {
+                continue;
+            }
+            for (int index : entry.getErasedIndices()) {
+                Stroke erased = history.get(index);
+                if (index < start && erased.getLayer() == layerIndex
+                        && erased.intersects(region.left, region.top, region.right, region.bottom)) {
+                    start = history.nearestCheckpointIndex(index);
+                }
+            }
+        }
+
+        region.roundOut(dirty);
+        tiles.clear(dirty);
+
+        if (start > 0) {
+            ((LayerSnapshots) history.getCheckpoint(start)).restore(layerIndex, tiles, dirty);
+        }
+
+        // Only the visible strokes near the region, found through the grid in history order
+        for (int index : strokeIndex.findIn(region.left, region.top, region.right, region.bottom, layerIndex, start)) {
+            drawStroke(history.get(index), dirty);
+        }
+        layer.markChanged();
+    }
+
+    // Rasterize a stroke into the tiles of its layer, leaving its bounds in strokeBounds
+    private void drawStroke(Stroke stroke, Rect clip) {
+        ensureLayer(stroke.getLayer());
+        DocumentLayer layer = layers.get(stroke.getLayer());
+        layer.getTiles().drawStroke(stroke, paintCache, getBounds(stroke, strokeBounds), clip);
+        layer.markChanged();
+    }
+
+    private static RectF getBounds(Stroke stroke, RectF out) {
+        out.set(stroke.getLeft(), stroke.getTop(), stroke.getRight(), stroke.getBottom());
+        return out;
+    }
+
+    // Snapshot the allocated tiles of every layer when the history is due a checkpoint
+    private void maybeCheckpoint() {
+        if (history.needsCheckpoint()) {
+            history.putCheckpoint(new LayerSnapshots(layers));
+        }
+    }
+
+    // Undo checkpoint covering all layers; layers added after it was taken count as empty
+    private static class LayerSnapshots implements UndoHistory.Checkpoint {
+        private final TiledLayer.Snapshot[] snapshots;
+        private final long byteCount;
+
+        LayerSnapshots(List<DocumentLayer> layers) {
+            snapshots = new TiledLayer.Snapshot[layers.size()];
+            long bytes = 0;
+            for (int i = 0; i < snapshots.length; i++) {
+                snapshots[i] = layers.get(i).getTiles().snapshot();
+                bytes += snapshots[i].getByteCount();
+            }
+            byteCount = bytes;
+        }
+
+        void restore(int layer, TiledLayer tiles, Rect region) {
+            if (layer < snapshots.length) {
+                tiles.restore(snapshots[layer], region);
+            }
+        }
+
+        @Override
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        @Override
+        public void release() {
+            for (TiledLayer.Snapshot snapshot : snapshots) {
+                snapshot.release();
+            }
+        }
+    }
+}
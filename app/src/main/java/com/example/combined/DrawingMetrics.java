@@ -0,0 +1,163 @@
+package com.example.combined;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Process-wide latency histograms for the drawing operations, frame statistics and bitmap memory in use.
+ *
+ * Recording is allocation-free: callers take {@link #now()} before an operation and pass it to
+ * {@link #record(Operation, long)} afterwards. The collected numbers can be dumped to logcat or a file.
+ */
+public class DrawingMetrics {
+
+    public enum Operation {
+        DRAW, TOUCH, UNDO, REDO, ERASE, MERGE, DECODE, EXPORT, FRAME,
+        CAPTURE, // From the camera returning a photo to the first frame showing it
+        AUTOSAVE, // From the oldest record in an autosave batch to the batch being on disk
+        THUMBNAIL, // A gallery thumbnail decoded from the saved image
+        THUMBNAIL_DISK // A gallery thumbnail read back from the disk cache
+    }
+
+    private static DrawingMetrics instance;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+
+    private long frameCount;
+    private long droppedFrameCount;
+    private long bitmapBytes;
+    private long peakBitmapBytes;
+    private long autosaveBatchCount;
+    private long autosaveRecordCount;
+
+    public static synchronized DrawingMetrics getInstance() {
+        if (instance == null) {
+            instance = new DrawingMetrics();
+        }
+        return instance;
+    }
+
+    public DrawingMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    // Record the time since startNanos, which came from now()
+    public void record(Operation operation, long startNanos) {
+        histograms[operation.ordinal()].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public void recordMillis(Operation operation, long millis) {
+        histograms[operation.ordinal()].record(millis * 1000);
+    }
+
+    // One rendered frame, plus how many vsync intervals were missed before it
+    public synchronized void recordFrame(long frameNanos, int droppedFrames) {
+        histograms[Operation.FRAME.ordinal()].recordNanos(frameNanos);
+        frameCount++;
+        droppedFrameCount += droppedFrames;
+    }
+
+    public synchronized void recordBitmapBytes(long bytes) {
+        bitmapBytes = bytes;
+        peakBitmapBytes = Math.max(peakBitmapBytes, bytes);
+    }
+
+    // One autosave write of the given number of history records
+    public synchronized void recordAutosaveBatch(int records) {
+        autosaveBatchCount++;
+        autosaveRecordCount += records;
+    }
+
+    public LatencyHistogram getHistogram(Operation operation) {
+        return histograms[operation.ordinal()];
+    }
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    public synchronized long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    public synchronized long getAutosaveBatchCount() {
+        return autosaveBatchCount;
+    }
+
+    // Records that went out with an earlier record's write instead of a write of their own
+    public synchronized long getCoalescedAutosaveCount() {
+        return autosaveRecordCount - autosaveBatchCount;
+    }
+
+    public synchronized long getBitmapBytes() {
+        return bitmapBytes;
+    }
+
+    public synchronized long getPeakBitmapBytes() {
+        return peakBitmapBytes;
+    }
+
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        frameCount = 0;
+        droppedFrameCount = 0;
+        autosaveBatchCount = 0;
+        autosaveRecordCount = 0;
+        peakBitmapBytes = bitmapBytes;
+    }
+
+    public void dump(PrintWriter out) {
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = histograms[operation.ordinal()];
+            if (histogram.getCount() > 0) {
+                out.println(operation + " " + histogram);
+            }
+        }
+        synchronized (this) {
+            out.println("frames=" + frameCount + " dropped=" + droppedFrameCount);
+            if (autosaveBatchCount > 0) {
+                out.println("autosave batches=" + autosaveBatchCount + " records=" + autosaveRecordCount
+                        + " coalesced=" + (autosaveRecordCount - autosaveBatchCount));
+            }
+            out.println("bitmaps=" + (bitmapBytes / 1024) + "KB peak=" + (peakBitmapBytes / 1024) + "KB");
+        }
+        out.println(BitmapPool.getInstance());
+    }
+
+    public void dumpToLog(String tag) {
+        for (String line : toString().split("\n")) {
+            Log.i(tag, line);
+        }
+    }
+
+    public void dumpToFile(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        dump(out);
+        out.flush();
+        return text.toString().trim();
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.combined;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+/**
+ * Counts frames and dropped frames of a window from its frame metrics while started.
+ *
+ * The window reports each frame it actually renders, so an idle screen costs nothing to monitor. A
+ * frame that takes longer than one vsync interval counts the intervals it ran over as dropped. Frame
+ * metrics need API 24; below that the monitor does nothing.
+ */
+public class FrameMonitor {
+
+    private static HandlerThread metricsThread; // Shared by all monitors, started on first use
+
+    private final DrawingMetrics metrics;
+    private final Window window;
+    private final long frameIntervalNanos;
+    private Window.OnFrameMetricsAvailableListener listener; // Only created on API 24+
+
+    public FrameMonitor(DrawingMetrics metrics, Window window, float refreshRate) {
+        this.metrics = metrics;
+        this.window = window;
+        this.frameIntervalNanos = (long) (1_000_000_000L / (refreshRate > 0 ? refreshRate : 60f));
+    }
+
+    // Must be called on the main thread
+    public void start() {
+        if (listener != null || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        listener = new Window.OnFrameMetricsAvailableListener() {
+            @Override
+            public void onFrameMetricsAvailable(Window window, FrameMetrics frameMetrics, int dropCountSinceLastInvocation) {
+                long frameNanos = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+                int dropped = frameNanos > frameIntervalNanos ? (int) ((frameNanos - 1) / frameIntervalNanos) : 0;
+                metrics.recordFrame(frameNanos, dropped);
+            }
+        };
+        window.addOnFrameMetricsAvailableListener(listener, new Handler(getMetricsThread().getLooper()));
+    }
+
+    public void stop() {
+        if (listener != null) {
+            window.removeOnFrameMetricsAvailableListener(listener);
+            listener = null;
+        }
+    }
+
+    // Reports are handled off the main thread, so measuring a frame never delays the next one
+    private static synchronized HandlerThread getMetricsThread() {
+        if (metricsThread == null) {
+            metricsThread = new HandlerThread("FrameMetrics");
+            metricsThread.start();
+        }
+        return metricsThread;
+    }
+}
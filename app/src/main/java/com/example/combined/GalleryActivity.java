@@ -0,0 +1,157 @@
+package com.example.combined;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Grid of the drawings the user has saved, newest first; tapping one opens it for more drawing.
+ */
+public class GalleryActivity extends Activity {
+
+    private static final String TAG = "GalleryActivity";
+
+    private static final int CELL_SIZE_DP = 120; // The grid's column width
+
+    private SessionIndex sessionIndex;
+    private ThumbnailCache thumbnailCache;
+    private SessionAdapter adapter;
+    private int thumbnailSize;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_gallery);
+
+        sessionIndex = SessionIndex.getInstance(this);
+        thumbnailCache = ThumbnailCache.getInstance(this);
+        thumbnailSize = dpToPx(CELL_SIZE_DP);
+
+        GridView gridSessions = findViewById(R.id.gridSessions);
+        final TextView textEmpty = findViewById(R.id.textEmpty);
+        adapter = new SessionAdapter();
+        gridSessions.setAdapter(adapter);
+        gridSessions.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                SessionIndex.Entry entry = adapter.getItem(position);
+                Intent drawIntent = new Intent(GalleryActivity.this, DrawActivity.class);
+                drawIntent.putExtra("imageUri", Uri.fromFile(sessionIndex.getImageFile(entry.id)).toString());
+                drawIntent.putExtra(DrawActivity.EXTRA_SESSION_ID, entry.id);
+                startActivity(drawIntent);
+            }
+        });
+
+        sessionIndex.load(new SessionIndex.Callback() {
+            @Override
+            public void onIndexLoaded(List<SessionIndex.Entry> entries) {
+                adapter.setEntries(entries);
+                textEmpty.setVisibility(entries.isEmpty() ? View.VISIBLE : View.GONE);
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // A drawing opened from here may have been saved again, which moves it to the front
+        adapter.notifyDataSetChanged();
+    }
+
+    @Override
+    protected void onDestroy() {
+        Log.d(TAG, thumbnailCache.toString());
+        DrawingMetrics.getInstance().dumpToLog(TAG);
+        super.onDestroy();
+    }
+
+    private int dpToPx(int dp) {
+        float density = getResources().getDisplayMetrics().density;
+        return (int) (dp * density + 0.5f);
+    }
+
+    // What a grid cell is showing, so a reused cell can drop the thumbnail load of its previous entry
+    private static class ViewHolder {
+        SessionIndex.Entry entry;
+        ThumbnailCache.Request request;
+    }
+
+    private class SessionAdapter extends BaseAdapter {
+        private List<SessionIndex.Entry> entries = new ArrayList<>();
+
+        void setEntries(List<SessionIndex.Entry> entries) {
+            this.entries = entries;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return entries.size();
+        }
+
+        @Override
+        public SessionIndex.Entry getItem(int position) {
+            return entries.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return entries.get(position).id;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final ImageView imageView;
+            final ViewHolder holder;
+            if (convertView == null) {
+                imageView = new ImageView(GalleryActivity.this);
+                imageView.setLayoutParams(new AbsListView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, thumbnailSize));
+                imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+                imageView.setBackgroundColor(Color.LTGRAY); // Until the thumbnail arrives
+                holder = new ViewHolder();
+                imageView.setTag(holder);
+            } else {
+                imageView = (ImageView) convertView;
+                holder = (ViewHolder) imageView.getTag();
+            }
+
+            final SessionIndex.Entry entry = entries.get(position);
+            if (holder.entry == entry && (holder.request != null || imageView.getDrawable() != null)) {
+                return imageView; // Already showing or loading this entry's thumbnail
+            }
+            if (holder.request != null) {
+                holder.request.cancel(); // The cell scrolled on to another entry before its thumbnail arrived
+                holder.request = null;
+            }
+            holder.entry = entry;
+            imageView.setImageBitmap(null);
+            holder.request = thumbnailCache.load(entry, sessionIndex.getImageFile(entry.id), thumbnailSize,
+                    new ThumbnailCache.Callback() {
+                        @Override
+                        public void onThumbnailLoaded(Bitmap thumbnail) {
+                            if (holder.entry != entry) {
+                                return;
+                            }
+                            holder.request = null;
+                            imageView.setImageBitmap(thumbnail);
+                        }
+                    });
+            return imageView;
+        }
+    }
+}
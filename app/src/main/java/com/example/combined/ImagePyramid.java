@@ -0,0 +1,335 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sharper tiles of the source photo for zoomed-in views, decoded on demand with BitmapRegionDecoder.
+ *
+ * The document works on a copy of the photo sampled down to the view size. Once the view is zoomed in
+ * past that resolution, the part in view is decoded again from the file at the power-of-two sample size
+ * that matches the zoom, in tiles of TILE_SIZE pixels. A level of the pyramid is only ever decoded where
+ * it has been looked at, and the most recently drawn tiles are kept under a byte budget. Until a tile
+ * arrives the document image shows through, so zooming never waits for a decode. Tiles are decoded as
+ * stored in the file and turned upright by the EXIF orientation when drawn, like the document image.
+ */
+public class ImagePyramid implements DrawingDocument.ImageOverlay {
+
+    private static final String TAG = "ImagePyramid";
+
+    public static final int TILE_SIZE = 256;
+
+    // Region decodes are serialized by the decoder anyway, and must not hold up the document decode thread
+    private static final ExecutorService DECODE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BitmapPool bitmapPool = BitmapPool.getInstance();
+    private final String path;
+    private final int baseWidth; // Size of the document image the tiles line up with, before any crop
+    private final int baseHeight;
+    private final long maxBytes;
+    private OnTileLoadedListener listener;
+
+    // Set on the decode thread once the file is open; sourceScale stays 0 if the tiles would not line up
+    private volatile BitmapRegionDecoder decoder;
+    private volatile float sourceScale; // Source pixels per document pixel
+    private volatile boolean isReleased;
+    private int sourceWidth; // As stored, before the orientation is applied
+    private int sourceHeight;
+    private int orientation;
+
+    private float originX, originY; // Where the document starts in the base image, moved by crops
+    private final RectF visibleRect = new RectF(); // Part of the document in view, in document coordinates
+    private float zoom = 1; // Screen pixels per document pixel
+
+    // Decoded tiles by key, least recently drawn first; only used on the main thread
+    private final LinkedHashMap<Long, Bitmap> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long tileBytes;
+    private final Set<Long> pending = new HashSet<>(); // Queued on the decode thread
+    // Tiles the last frame needed, so queued decodes of tiles scrolled out of view can be skipped
+    private final Set<Long> wanted = new HashSet<>();
+
+    private final Paint tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect tileSource = new Rect();
+    private final RectF tileDestination = new RectF();
+    private final Matrix sourceToDocument = new Matrix();
+    private final Matrix documentToSource = new Matrix();
+    private final RectF visibleSource = new RectF(); // The visible rect in stored source pixels
+
+    // Called on the main thread whenever a tile that was in view has been decoded
+    public interface OnTileLoadedListener {
+        void onTileLoaded();
+    }
+
+    public ImagePyramid(String path, int baseWidth, int baseHeight, long maxBytes) {
+        this.path = path;
+        this.baseWidth = baseWidth;
+        this.baseHeight = baseHeight;
+        this.maxBytes = maxBytes;
+        DECODE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getBaseWidth() {
+        return baseWidth;
+    }
+
+    public int getBaseHeight() {
+        return baseHeight;
+    }
+
+    public float getOriginX() {
+        return originX;
+    }
+
+    public float getOriginY() {
+        return originY;
+    }
+
+    public void setOnTileLoadedListener(OnTileLoadedListener listener) {
+        this.listener = listener;
+    }
+
+    // Follow a crop of the document; cached tiles stay valid since they are placed in source coordinates
+    public void offsetOrigin(float dx, float dy) {
+        originX += dx;
+        originY += dy;
+    }
+
+    // The part of the document in view and how far it is zoomed, for the next draw
+    public void setViewport(RectF visible, float zoom) {
+        visibleRect.set(visible);
+        this.zoom = zoom;
+    }
+
+    // Whether the source has more detail to show than the document image at the current zoom
+    public boolean hasDetail() {
+        return decoder != null && sampleSizeFor(sourceScale, zoom) > 0;
+    }
+
+    // Draw the cached tiles of the level matching the zoom in document coordinates and queue the missing ones
+    @Override
+    public void draw(Canvas canvas) {
+        int sampleSize = decoder != null ? sampleSizeFor(sourceScale, zoom) : 0;
+        if (sampleSize == 0) {
+            return;
+        }
+        // Tiles are laid out over the stored source, which is turned upright, scaled down to the document
+        // image and moved by any crops
+        BitmapLoader.setOrientationMatrix(sourceToDocument, orientation, sourceWidth, sourceHeight);
+        sourceToDocument.postScale(1 / sourceScale, 1 / sourceScale);
+        sourceToDocument.postTranslate(-originX, -originY);
+        sourceToDocument.invert(documentToSource);
+        documentToSource.mapRect(visibleSource, visibleRect);
+
+        int level = Integer.numberOfTrailingZeros(sampleSize);
+        int span = TILE_SIZE * sampleSize; // Source pixels covered by one tile
+        int firstColumn = Math.max(0, (int) Math.floor(visibleSource.left / span));
+        int lastColumn = Math.min((sourceWidth - 1) / span, (int) Math.floor(visibleSource.right / span));
+        int firstRow = Math.max(0, (int) Math.floor(visibleSource.top / span));
+        int lastRow = Math.min((sourceHeight - 1) / span, (int) Math.floor(visibleSource.bottom / span));
+
+        synchronized (wanted) {
+            wanted.clear();
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    wanted.add(tileKey(level, row, column));
+                }
+            }
+        }
+        canvas.save();
+        canvas.concat(sourceToDocument);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                long key = tileKey(level, row, column);
+                int left = column * span;
+                int top = row * span;
+                int right = Math.min(left + span, sourceWidth);
+                int bottom = Math.min(top + span, sourceHeight);
+                Bitmap tile = tiles.get(key); // Also marks the tile as recently used
+                if (tile == null) {
+                    if (!pending.contains(key)) {
+                        requestTile(key, new Rect(left, top, right, bottom), sampleSize);
+                    }
+                    continue;
+                }
+                // Tiles are decoded into pooled TILE_SIZE bitmaps, so edge tiles only fill the top left
+                tileSource.set(0, 0, (right - left + sampleSize - 1) / sampleSize, (bottom - top + sampleSize - 1) / sampleSize);
+                tileDestination.set(left, top, right, bottom);
+                canvas.drawBitmap(tile, tileSource, tileDestination, tilePaint);
+            }
+        }
+        canvas.restore();
+    }
+
+    // Close the decoder and hand the tiles back to the pool; decodes still queued are dropped
+    public void release() {
+        isReleased = true;
+        DECODE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (decoder != null) {
+                    decoder.recycle();
+                    decoder = null;
+                }
+            }
+        });
+        for (Bitmap tile : tiles.values()) {
+            bitmapPool.put(tile);
+        }
+        tiles.clear();
+        tileBytes = 0;
+    }
+
+    // Largest power-of-two sample size that still gives at least one source pixel per screen pixel at the
+    // given zoom, or 0 when that would be no sharper than the document image itself
+    static int sampleSizeFor(float sourceScale, float zoom) {
+        if (sourceScale <= 1 || zoom <= 1) {
+            return 0;
+        }
+        float sourcePerScreen = sourceScale / zoom;
+        int sampleSize = 1;
+        while (sampleSize * 2 <= sourcePerScreen) {
+            sampleSize *= 2;
+        }
+        return sampleSize < sourceScale ? sampleSize : 0;
+    }
+
+    static long tileKey(int level, int row, int column) {
+        return ((long) level << 56) | ((long) row << 28) | column;
+    }
+
+    private void open() {
+        try {
+            BitmapRegionDecoder opened = BitmapRegionDecoder.newInstance(path, false);
+            int exifOrientation = BitmapLoader.readOrientation(path);
+            boolean isTransposed = BitmapLoader.isTransposed(exifOrientation);
+            float scaleX = (float) (isTransposed ? opened.getHeight() : opened.getWidth()) / baseWidth;
+            float scaleY = (float) (isTransposed ? opened.getWidth() : opened.getHeight()) / baseHeight;
+            // The document image is a uniformly scaled decode of the same file; anything else cannot line up
+            if (isReleased || Math.abs(scaleX - scaleY) > 0.02f * Math.max(scaleX, scaleY)) {
+                opened.recycle();
+                return;
+            }
+            sourceWidth = opened.getWidth();
+            sourceHeight = opened.getHeight();
+            orientation = exifOrientation;
+            sourceScale = (scaleX + scaleY) / 2;
+            decoder = opened;
+            notifyTileLoaded(); // The view may already be zoomed in
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot open " + path + " for region decoding", e);
+        }
+    }
+
+    private void requestTile(final long key, final Rect region, final int sampleSize) {
+        pending.add(key);
+        DECODE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean isWanted;
+                synchronized (wanted) {
+                    isWanted = wanted.contains(key);
+                }
+                final Bitmap tile = isWanted && decoder != null ? decodeTile(region, sampleSize) : null;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.remove(key);
+                        if (tile == null) {
+                            return;
+                        }
+                        if (isReleased) {
+                            bitmapPool.put(tile);
+                            return;
+                        }
+                        putTile(key, tile);
+                        if (listener != null) {
+                            listener.onTileLoaded();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private Bitmap decodeTile(Rect region, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // Every tile fits a TILE_SIZE bitmap, so tiles evicted from any level can be decoded into
+        options.inBitmap = bitmapPool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap tile;
+        try {
+            tile = decoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not hold this decode; fall back to a fresh allocation
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            tile = decoder.decodeRegion(region, options);
+        }
+        if (tile == null) {
+            Log.w(TAG, "Region decode failed for " + path + " " + region);
+            bitmapPool.put(options.inBitmap);
+        }
+        return tile;
+    }
+
+    private void putTile(long key, Bitmap tile) {
+        Bitmap previous = tiles.put(key, tile);
+        if (previous != null) {
+            tileBytes -= previous.getAllocationByteCount();
+            bitmapPool.put(previous);
+        }
+        tileBytes += tile.getAllocationByteCount();
+        // Evict the least recently drawn tiles, which are the ones furthest from the current view
+        Iterator<Map.Entry<Long, Bitmap>> iterator = tiles.entrySet().iterator();
+        while (tileBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Long, Bitmap> eldest = iterator.next();
+            if (eldest.getKey() == key) {
+                break; // Always keep the tile that was just decoded
+            }
+            tileBytes -= eldest.getValue().getAllocationByteCount();
+            bitmapPool.put(eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    // From the decode thread
+    private void notifyTileLoaded() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null && !isReleased) {
+                    listener.onTileLoaded();
+                }
+            }
+        });
+    }
+}
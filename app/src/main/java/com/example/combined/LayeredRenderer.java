@@ -0,0 +1,114 @@
+package com.example.combined;
+
+import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Keeps the parts of a DrawingDocument that do not change during a stroke in RenderNodes, so frames
+ * drawn mid-stroke only replay them.
+ *
+ * The document is split around its active layer: the image with the layers below it, the active layer,
+ * and the layers above it. Each node is recorded again only when the document reports a new version
+ * for its part. The nodes below and above are backed by compositing layers, so however many layers
+ * they contain they are blended as one texture per frame. The active layer's node applies the layer's
+ * alpha and blend mode when it is composited. With an image overlay the image is drawn directly instead,
+ * followed by the overlay and a below node recorded without the image.
+ */
+@RequiresApi(Build.VERSION_CODES.Q)
+public class LayeredRenderer {
+
+    private final RenderNode belowNode = new RenderNode("below");
+    private final RenderNode activeNode = new RenderNode("active");
+    private final RenderNode aboveNode = new RenderNode("above");
+    // Document versions the nodes were recorded at, -1 when they need recording
+    private long belowVersion = -1;
+    private boolean belowHasImage;
+    private long activeVersion = -1;
+    private long aboveVersion = -1;
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+    // Draw onto a hardware-accelerated canvas with an optional overlay over the image and an optional stroke
+    // in progress over the active layer, re-recording only the nodes whose content changed
+    public void draw(Canvas canvas, DrawingDocument document, DrawingDocument.ImageOverlay overlay,
+                     StrokeRuns liveRuns, int liveColor) {
+        if (!document.hasImage()) {
+            return;
+        }
+        int width = document.getWidth();
+        int height = document.getHeight();
+
+        boolean withImage = overlay == null;
+        if (belowVersion != document.getBelowVersion() || belowHasImage != withImage || !belowNode.hasDisplayList()) {
+            // Without the image under them, layers with other blend modes have to blend with the canvas
+            belowNode.setUseCompositingLayer(withImage || document.isBelowFlattenable(), null);
+            belowNode.setPosition(0, 0, width, height);
+            RecordingCanvas recordingCanvas = belowNode.beginRecording(width, height);
+            try {
+                if (withImage) {
+                    document.drawBelowActive(recordingCanvas);
+                } else {
+                    document.drawLayersBelowActive(recordingCanvas);
+                }
+            } finally {
+                belowNode.endRecording();
+            }
+            belowVersion = document.getBelowVersion();
+            belowHasImage = withImage;
+        }
+        if (activeVersion != document.getActiveVersion() || !activeNode.hasDisplayList()) {
+            DocumentLayer layer = document.getLayer(document.getActiveLayer());
+            // The layer paint is applied once to the whole node rather than to every tile
+            activeNode.setUseCompositingLayer(true, layer.getPaint());
+            activeNode.setPosition(0, 0, width, height);
+            RecordingCanvas recordingCanvas = activeNode.beginRecording(width, height);
+            try {
+                if (layer.isVisible()) {
+                    layer.getTiles().drawTo(recordingCanvas, null);
+                }
+            } finally {
+                activeNode.endRecording();
+            }
+            activeVersion = document.getActiveVersion();
+        }
+        if (aboveVersion != document.getAboveVersion() || !aboveNode.hasDisplayList()) {
+            // Layers with other blend modes have to blend with what is actually under them
+            aboveNode.setUseCompositingLayer(document.isAboveFlattenable(), null);
+            aboveNode.setPosition(0, 0, width, height);
+            RecordingCanvas recordingCanvas = aboveNode.beginRecording(width, height);
+            try {
+                document.drawAboveActive(recordingCanvas);
+            } finally {
+                aboveNode.endRecording();
+            }
+            aboveVersion = document.getAboveVersion();
+        }
+
+        if (overlay != null) {
+            document.drawImage(canvas);
+            overlay.draw(canvas);
+        }
+        canvas.drawRenderNode(belowNode);
+        canvas.drawRenderNode(activeNode);
+        if (liveRuns != null) {
+            liveRuns.draw(canvas, liveColor, PaintCache.getInstance());
+        }
+        canvas.drawRenderNode(aboveNode);
+    }
+
+    // Drop the display lists, e.g. when the view leaves the window; they are re-recorded on the next draw
+    public void release() {
+        belowNode.discardDisplayList();
+        activeNode.discardDisplayList();
+        aboveNode.discardDisplayList();
+        belowVersion = -1;
+        activeVersion = -1;
+        aboveVersion = -1;
+    }
+}
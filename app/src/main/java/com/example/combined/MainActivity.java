@@ -2,12 +2,14 @@ package com.example.combined;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.util.DisplayMetrics;
 import android.view.View;
 import android.widget.Toast;
 
@@ -17,19 +19,26 @@ import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 
 public class MainActivity extends Activity {
 
     private static final int REQUEST_IMAGE_CAPTURE = 1;
     private static final int REQUEST_CAMERA_PERMISSION = 2;
+    private static final int MAX_KEPT_CAPTURES = 10; // Older captures are deleted when a new one is taken
+    private static final String STATE_CAPTURED_IMAGE = "capturedImage";
     private File capturedImageFile;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        if (savedInstanceState != null && savedInstanceState.getString(STATE_CAPTURED_IMAGE) != null) {
+            // The camera app may have pushed this activity out of memory while it was open
+            capturedImageFile = new File(savedInstanceState.getString(STATE_CAPTURED_IMAGE));
+        }
 
         findViewById(R.id.buttonCapture).setOnClickListener(new View.OnClickListener() {
             @Override
@@ -45,6 +54,43 @@ public class MainActivity extends Activity {
                 }
             }
         });
+
+        findViewById(R.id.buttonGallery).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                startActivity(new Intent(MainActivity.this, GalleryActivity.class));
+            }
+        });
+
+        if (savedInstanceState == null) {
+            offerToResumeSession();
+        }
+    }
+
+    // DrawActivity autosaves its session, which outlives the app being killed; offer to pick it up again
+    private void offerToResumeSession() {
+        new SessionStore(new File(getCacheDir(), "session")).loadResumable(new SessionStore.ResumableCallback() {
+            @Override
+            public void onResumableSession(final String sourcePath, final long sessionId) {
+                if (sourcePath == null || isFinishing()) {
+                    return;
+                }
+                new AlertDialog.Builder(MainActivity.this)
+                        .setMessage("Continue the last drawing?")
+                        .setPositiveButton("Continue", new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                Intent drawIntent = new Intent(MainActivity.this, DrawActivity.class);
+                                drawIntent.putExtra("imageUri", Uri.fromFile(new File(sourcePath)).toString());
+                                drawIntent.putExtra(DrawActivity.EXTRA_RESUME_SESSION, true);
+                                drawIntent.putExtra(DrawActivity.EXTRA_SESSION_ID, sessionId); // Saves over its gallery entry
+                                startActivity(drawIntent);
+                            }
+                        })
+                        .setNegativeButton("Dismiss", null)
+                        .show();
+            }
+        });
     }
 
     private void dispatchTakePictureIntent() {
@@ -65,12 +111,43 @@ public class MainActivity extends Activity {
         }
     }
 
+    // Every capture gets its own file, so a capture never overwrites one that is still being edited
     private File createCapturedImageFile() throws IOException {
-        String fileName = "captured_image.jpg";
-        File storageDir = getExternalFilesDir(null);
-        File imageFile = new File(storageDir, fileName);
-        imageFile.createNewFile();
-        return imageFile;
+        File storageDir = new File(getExternalFilesDir(null), "captures");
+        if (!storageDir.isDirectory() && !storageDir.mkdirs()) {
+            throw new IOException("Cannot create " + storageDir);
+        }
+        // The autosaved session may still be drawing on an old capture
+        String sessionSourcePath = new SessionStore(new File(getCacheDir(), "session")).readSourcePath();
+        deleteOldCaptures(storageDir, sessionSourcePath);
+        return File.createTempFile("capture_" + System.currentTimeMillis() + "_", ".jpg", storageDir);
+    }
+
+    // Keep room for the new capture within MAX_KEPT_CAPTURES, deleting the oldest ones except keptPath
+    private static void deleteOldCaptures(File storageDir, String keptPath) {
+        File[] captures = storageDir.listFiles();
+        if (captures == null || captures.length < MAX_KEPT_CAPTURES) {
+            return;
+        }
+        Arrays.sort(captures, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified()); // Newest first
+            }
+        });
+        for (int i = MAX_KEPT_CAPTURES - 1; i < captures.length; i++) {
+            if (!captures[i].getAbsolutePath().equals(keptPath)) {
+                captures[i].delete();
+            }
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (capturedImageFile != null) {
+            outState.putString(STATE_CAPTURED_IMAGE, capturedImageFile.getPath());
+        }
     }
 
     @Override
@@ -93,11 +170,22 @@ public class MainActivity extends Activity {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == RESULT_OK) {
             if (capturedImageFile != null) {
-                // Start the DrawActivity and pass the URI of the captured image file
+                // Decode a screen-sized preview while DrawActivity starts, and hand it over by key; the URI
+                // is still passed for when the preview is gone, e.g. after process death
+                DisplayMetrics display = getResources().getDisplayMetrics();
+                String captureKey = CaptureCache.getInstance().startPreview(capturedImageFile,
+                        display.widthPixels, display.heightPixels, BitmapLoader.isMemoryTight(this), DrawingMetrics.now());
                 Intent drawIntent = new Intent(this, DrawActivity.class);
                 drawIntent.putExtra("imageUri", Uri.fromFile(capturedImageFile).toString());
+                drawIntent.putExtra(DrawActivity.EXTRA_CAPTURE_KEY, captureKey);
                 startActivity(drawIntent);
             }
+        } else if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == RESULT_CANCELED) {
+            // Nothing was taken; drop the empty file made for it
+            if (capturedImageFile != null && capturedImageFile.length() == 0) {
+                capturedImageFile.delete();
+            }
+            capturedImageFile = null;
         }
     }
 }
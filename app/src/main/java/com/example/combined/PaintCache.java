@@ -0,0 +1,99 @@
+package com.example.combined;
+
+import android.graphics.Paint;
+
+/**
+ * Shared stroke paints keyed by colour, width and cap.
+ *
+ * Each Paint is configured once when it is created and must never be modified by callers, so replaying
+ * strokes neither allocates nor changes paint state. The lookup table is open-addressed on a primitive
+ * key, so a cache hit does not box the key.
+ */
+public class PaintCache {
+
+    private static final int MAX_SIZE = 4096; // Far more than the colours and widths a user can pick
+
+    private static PaintCache instance;
+
+    private long[] keys = new long[64];
+    private Paint[] paints = new Paint[64];
+    private int size;
+
+    public static synchronized PaintCache getInstance() {
+        if (instance == null) {
+            instance = new PaintCache();
+        }
+        return instance;
+    }
+
+    public synchronized Paint get(int color, int width, Paint.Cap cap) {
+        long key = key(color, width, cap);
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (paints[index] != null) {
+            if (keys[index] == key) {
+                return paints[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setColor(color);
+        paint.setStrokeWidth(width);
+        paint.setStrokeCap(cap);
+        // Round joins keep every corner within half the width of the path, which the stroke bounds rely on
+        paint.setStrokeJoin(Paint.Join.ROUND);
+
+        if (size >= MAX_SIZE) {
+            clear();
+        } else if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        insert(key, paint);
+        return paint;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        keys = new long[64];
+        paints = new Paint[64];
+        size = 0;
+    }
+
+    static long key(int color, int width, Paint.Cap cap) {
+        return (color & 0xFFFFFFFFL) | ((long) (width & 0xFFFF) << 32) | ((long) cap.ordinal() << 48);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void insert(long key, Paint paint) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (paints[index] != null) {
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        paints[index] = paint;
+        size++;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Paint[] oldPaints = paints;
+        keys = new long[oldKeys.length * 2];
+        paints = new Paint[oldPaints.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldPaints[i] != null) {
+                insert(oldKeys[i], oldPaints[i]);
+            }
+        }
+    }
+}
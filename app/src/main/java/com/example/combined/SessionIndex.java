@@ -0,0 +1,332 @@
+package com.example.combined;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Index of the annotated images the user has saved, for the gallery.
+ *
+ * Saving a drawing writes its merged image to sessions/ID.jpg, replacing the previous save of the same
+ * drawing, and moves its entry to the front. Entries are 24 bytes in a small binary file next to the
+ * images. It is read once per process and rewritten in full on the I/O thread after every change,
+ * which for hundreds of entries is still a single small write.
+ *
+ * Next to the merged image, ID.source.jpg keeps the image without the strokes and ID.strokes the
+ * strokes themselves, so a saved drawing reopens with every stroke still editable and the source is
+ * only encoded again when it changes, e.g. after a crop.
+ *
+ * All methods must be called on the main thread.
+ */
+public class SessionIndex {
+
+    private static final String TAG = "SessionIndex";
+
+    private static final int MAGIC = 0x53494458; // "SIDX"
+
+    private static final ExecutorService IO_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static SessionIndex instance;
+
+    private final File directory;
+    private final File indexFile;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private List<Entry> entries; // Newest save first, null until loaded
+    private final List<Callback> waitingCallbacks = new ArrayList<>();
+
+    // One saved drawing; the id is also when it was first saved
+    public static class Entry {
+        public final long id;
+        public long savedMillis; // Changes with every save, so thumbnails of an older save are not reused
+        public int width;
+        public int height;
+
+        Entry(long id, long savedMillis, int width, int height) {
+            this.id = id;
+            this.savedMillis = savedMillis;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    public interface Callback {
+        void onIndexLoaded(List<Entry> entries);
+    }
+
+    // The strokes of a saved drawing, in the coordinates of a width x height image
+    public static class SavedStrokes {
+        public final int width;
+        public final int height;
+        public final List<Stroke> strokes;
+
+        SavedStrokes(int width, int height, List<Stroke> strokes) {
+            this.width = width;
+            this.height = height;
+            this.strokes = strokes;
+        }
+    }
+
+    public interface SavedDrawingCallback {
+        // Called on the main thread. The image to open is the source if it was saved, otherwise the merged
+        // image; strokes is null if there are none to restore.
+        void onSavedDrawingLoaded(File image, SavedStrokes strokes);
+    }
+
+    public static synchronized SessionIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new SessionIndex(new File(context.getApplicationContext().getFilesDir(), "sessions"));
+        }
+        return instance;
+    }
+
+    SessionIndex(File directory) {
+        this.directory = directory;
+        this.indexFile = new File(directory, "index.bin");
+    }
+
+    // Where the merged image of a saved drawing is kept
+    public File getImageFile(long id) {
+        directory.mkdirs();
+        return new File(directory, id + ".jpg");
+    }
+
+    // The image of a saved drawing without its strokes
+    public File getSourceFile(long id) {
+        directory.mkdirs();
+        return new File(directory, id + ".source.jpg");
+    }
+
+    // An id for a drawing that has not been saved before
+    public long newId() {
+        return System.currentTimeMillis();
+    }
+
+    // Hand the entries to the callback, right away once they have been read; the list must not be modified
+    public void load(Callback callback) {
+        if (entries != null) {
+            callback.onIndexLoaded(entries);
+            return;
+        }
+        waitingCallbacks.add(callback);
+        if (waitingCallbacks.size() > 1) {
+            return; // Already being read
+        }
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Entry> loaded = read();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (entries == null) {
+                            entries = loaded;
+                        }
+                        for (Callback waiting : waitingCallbacks) {
+                            waiting.onIndexLoaded(entries);
+                        }
+                        waitingCallbacks.clear();
+                    }
+                });
+            }
+        });
+    }
+
+    // Record a save of the drawing with the given id, whose image has just been written to getImageFile(id).
+    // The strokes are in the coordinates of the width x height image and must not change during this call.
+    public void put(final long id, final int width, final int height, List<Stroke> strokes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeStrokes(new SavedStrokes(width, height, strokes), new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory cannot fail
+        }
+        final byte[] strokeBytes = bytes.toByteArray();
+        // Queued ahead of the index, so an entry is never listed before its strokes are on disk
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeAtomically(getStrokesFile(id), strokeBytes);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write strokes of " + id, e);
+                }
+            }
+        });
+        load(new Callback() {
+            @Override
+            public void onIndexLoaded(List<Entry> loaded) {
+                Iterator<Entry> iterator = entries.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().id == id) {
+                        iterator.remove();
+                    }
+                }
+                entries.add(0, new Entry(id, System.currentTimeMillis(), width, height));
+                write(new ArrayList<>(entries));
+            }
+        });
+    }
+
+    // Find what a saved drawing reopens from on the I/O thread
+    public void loadSavedDrawing(final long id, final SavedDrawingCallback callback) {
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                File source = getSourceFile(id);
+                SavedStrokes saved = null;
+                if (source.exists()) {
+                    saved = readStrokesFile(id);
+                }
+                // Without both, the strokes are only in the merged image
+                final File image = saved != null ? source : getImageFile(id);
+                final SavedStrokes strokes = saved;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSavedDrawingLoaded(image, strokes);
+                    }
+                });
+            }
+        });
+    }
+
+    static void writeStrokes(SavedStrokes saved, DataOutput out) throws IOException {
+        out.writeInt(saved.width);
+        out.writeInt(saved.height);
+        Stroke.writeList(saved.strokes, out);
+    }
+
+    static SavedStrokes readStrokes(DataInput in) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Corrupt saved strokes: " + width + "x" + height);
+        }
+        return new SavedStrokes(width, height, Stroke.readList(in));
+    }
+
+    static void writeEntries(List<Entry> entries, DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeLong(entry.id);
+            out.writeLong(entry.savedMillis);
+            out.writeInt(entry.width);
+            out.writeInt(entry.height);
+        }
+    }
+
+    static List<Entry> readEntries(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a session index");
+        }
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt session index: " + count + " entries");
+        }
+        List<Entry> entries = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(in.readLong(), in.readLong(), in.readInt(), in.readInt()));
+        }
+        return entries;
+    }
+
+    // On the I/O thread; entries whose image is gone are dropped
+    private List<Entry> read() {
+        List<Entry> loaded = new ArrayList<>();
+        if (!indexFile.exists()) {
+            return loaded;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                loaded = readEntries(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read session index", e);
+            return loaded;
+        }
+        Iterator<Entry> iterator = loaded.iterator();
+        while (iterator.hasNext()) {
+            if (!new File(directory, iterator.next().id + ".jpg").exists()) {
+                iterator.remove();
+            }
+        }
+        return loaded;
+    }
+
+    // Replace the index file with a copy of the entries, never leaving a half-written index behind
+    private void write(final List<Entry> snapshot) {
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    writeEntries(snapshot, new DataOutputStream(bytes));
+                    writeAtomically(indexFile, bytes.toByteArray());
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write session index", e);
+                }
+            }
+        });
+    }
+
+    private File getStrokesFile(long id) {
+        return new File(directory, id + ".strokes");
+    }
+
+    // On the I/O thread; null if the drawing was saved without its strokes or they cannot be read
+    private SavedStrokes readStrokesFile(long id) {
+        File file = getStrokesFile(id);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return readStrokes(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read strokes of " + id, e);
+            return null;
+        }
+    }
+
+    // Write to a temporary file and rename it over the target once it is on disk
+    private void writeAtomically(File file, byte[] bytes) throws IOException {
+        directory.mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the current drawing session in the cache directory so it survives configuration changes
+ * and process death.
+ *
+ * The working (already downsampled) image is stored as raw pixels in its own config (ARGB_8888 or
+ * RGB_565) and the stroke history as an append-only log of add, undo and redo records. Both files are memory-mapped on restore, so reopening
+ * a session costs a pixel copy plus a parse of the log instead of a JPEG decode.
+ *
+ * A snapshot is written to temporary files next to the session and renamed over it, image first, so a
+ * crash never pairs an image with the history of another one; recover() finishes or drops a snapshot
+ * that was interrupted. A log that ends in a damaged record is restored up to the last good one.
+ *
+ * History records are autosaved in batches: they collect in memory until drawing pauses for
+ * AUTOSAVE_DELAY_MILLIS (or has gone on for AUTOSAVE_MAX_DELAY_MILLIS), and each batch is then written
+ * with one write and one fsync on the I/O thread. Autosaves only write the new records, never the
+ * image, so their cost does not grow with the image size.
+ */
+public class SessionStore {
+
+    private static final String TAG = "SessionStore";
+
+    private static final int IMAGE_MAGIC = 0x494d4732; // "IMG2"
+    private static final int IMAGE_HEADER_SIZE = 16; // Magic, width, height, config
+    // Stored configs; an opaque RGB_565 document image is kept at 2 bytes per pixel across restores
+    private static final int CONFIG_ARGB_8888 = 0;
+    private static final int CONFIG_RGB_565 = 1;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_UNDO = 2;
+    private static final byte RECORD_REDO = 3;
+
+    static final long AUTOSAVE_DELAY_MILLIS = 500; // Quiet time before pending records are written
+    static final long AUTOSAVE_MAX_DELAY_MILLIS = 2000; // Longest a record waits while drawing goes on
+
+    // Single I/O thread so records are appended in the order they happened
+    private static final ExecutorService IO_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final File imageFile;
+    private final File logFile;
+    private final File imageTempFile; // A snapshot's files until it is committed by renaming the image
+    private final File logTempFile;
+    private final File sourceFile; // Path of the photo the session was started from and its saved drawing
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BitmapPool bitmapPool = BitmapPool.getInstance();
+    private final DrawingMetrics metrics = DrawingMetrics.getInstance();
+
+    // Only touched on the I/O thread
+    private FileOutputStream logFileStream;
+    private DataOutputStream logStream;
+
+    // Records waiting for the next autosave; only touched on the main thread
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pendingRecords);
+    private int pendingCount;
+    private long pendingSince; // DrawingMetrics.now() of the oldest pending record
+    private final Runnable autosave = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public SessionStore(File directory) {
+        directory.mkdirs();
+        imageFile = new File(directory, "image.raw");
+        logFile = new File(directory, "strokes.log");
+        imageTempFile = new File(directory, "image.raw.tmp");
+        logTempFile = new File(directory, "strokes.log.tmp");
+        sourceFile = new File(directory, "source");
+    }
+
+    public interface RestoreCallback {
+        void onSessionRestored(Bitmap image, List<Stroke> strokes, List<Stroke> undoneStrokes, long millis);
+
+        void onSessionRestoreFailed(Exception e);
+    }
+
+    public interface ResumableCallback {
+        // Called on the main thread; sourcePath is null if there is no session to resume
+        void onResumableSession(String sourcePath, long sessionId);
+    }
+
+    // Replace the stored session with the given image and history; undone strokes are given next-redo first.
+    // The source path and the id of the saved drawing (0 if not saved yet) are kept so the session can be
+    // offered again after the app was killed.
+    public void writeSnapshot(Bitmap image, final String sourcePath, final long sessionId, List<Stroke> strokes,
+                              Collection<Stroke> undoneStrokes) {
+        discardPending(); // The snapshot holds the whole history
+        // Copy what the I/O thread needs now, since the view keeps mutating and pooling its own objects
+        final Bitmap imageCopy = bitmapPool.get(image.getWidth(), image.getHeight(), snapshotConfig(image));
+        new Canvas(imageCopy).drawBitmap(image, 0, 0, null);
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        try {
+            for (Stroke stroke : strokes) {
+                writeAdd(out, stroke);
+            }
+            // Re-adding the undone strokes and undoing them rebuilds the redo stack in the same order
+            for (Stroke stroke : undoneStrokes) {
+                writeAdd(out, stroke);
+            }
+            for (int i = 0; i < undoneStrokes.size(); i++) {
+                out.writeByte(RECORD_UNDO);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory cannot fail
+        }
+        final byte[] recordBytes = records.toByteArray();
+
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    closeLog();
+                    // Both files are complete on disk before the image is renamed, which commits the snapshot
+                    writeImage(imageCopy, imageTempFile);
+                    writeLog(recordBytes, logTempFile);
+                    rename(imageTempFile, imageFile);
+                    rename(logTempFile, logFile);
+                    openLog(true);
+                    writeSourceFile(sourcePath, sessionId);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write session snapshot", e);
+                    // Back to whichever complete session is on disk. Its log stays closed, since records
+                    // appended from here on belong to the new image and would not replay on the old one.
+                    recover();
+                } finally {
+                    bitmapPool.put(imageCopy);
+                }
+            }
+        });
+    }
+
+    // The history records are main-thread only and go out with the next autosave
+    public void appendStroke(Stroke stroke) {
+        try {
+            writeAdd(pendingOut, stroke);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory cannot fail
+        }
+        recordAppended();
+    }
+
+    public void appendUndo() {
+        pendingRecords.write(RECORD_UNDO);
+        recordAppended();
+    }
+
+    public void appendRedo() {
+        pendingRecords.write(RECORD_REDO);
+        recordAppended();
+    }
+
+    // Hand the pending records to the I/O thread now, e.g. when the activity goes to the background
+    public void flush() {
+        mainHandler.removeCallbacks(autosave);
+        if (pendingCount == 0) {
+            return;
+        }
+        final byte[] batch = pendingRecords.toByteArray();
+        final int recordCount = pendingCount;
+        final long since = pendingSince;
+        discardPending();
+
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (logStream == null) {
+                    return; // No session has been started
+                }
+                try {
+                    logStream.write(batch);
+                    logStream.flush();
+                    logFileStream.getFD().sync(); // One fsync for the whole batch
+                    metrics.record(DrawingMetrics.Operation.AUTOSAVE, since);
+                    metrics.recordAutosaveBatch(recordCount);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to append to session log", e);
+                }
+            }
+        });
+    }
+
+    // Record the id a drawing got when it was first saved, so resuming the session saves over it
+    public void writeSource(final String sourcePath, final long sessionId) {
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSourceFile(sourcePath, sessionId);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write session source", e);
+                }
+            }
+        });
+    }
+
+    public void close() {
+        flush();
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeLog();
+            }
+        });
+    }
+
+    public boolean hasSession() {
+        // The log of a first snapshot may still be waiting for recover() to move it into place
+        return imageFile.exists() && (logFile.exists() || (logTempFile.exists() && !imageTempFile.exists()));
+    }
+
+    // Path of the photo the stored session was started from, or null if unknown
+    public String readSourcePath() {
+        if (!sourceFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(sourceFile));
+            try {
+                return in.readUTF();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read session source", e);
+            return null;
+        }
+    }
+
+    // Id of the saved drawing the stored session belongs to, or 0 if it was never saved
+    public long readSessionId() {
+        if (!sourceFile.exists()) {
+            return 0;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(sourceFile));
+            try {
+                in.readUTF();
+                return in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read session id", e);
+            return 0;
+        }
+    }
+
+    // Look up the stored session on the I/O thread, behind any snapshot still being written
+    public void loadResumable(final ResumableCallback callback) {
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String sourcePath = hasSession() ? readSourcePath() : null;
+                final long sessionId = sourcePath != null ? readSessionId() : 0;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResumableSession(sourcePath, sessionId);
+                    }
+                });
+            }
+        });
+    }
+
+    // Map both files on the I/O thread, then replay the log and hand the result to the main thread
+    public void restore(final RestoreCallback callback) {
+        IO_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                Bitmap image = null;
+                try {
+                    closeLog();
+                    recover();
+                    image = readImage();
+                    final List<Stroke> strokes = new ArrayList<>();
+                    final List<Stroke> undoneStrokes = new ArrayList<>();
+                    long goodLength = readLog(strokes, undoneStrokes);
+                    if (goodLength < logFile.length()) {
+                        truncateLog(goodLength); // New records must not land behind a damaged one
+                    }
+                    // Keep appending to the same log from here on
+                    openLog(true);
+
+                    final Bitmap restoredImage = image;
+                    final long millis = SystemClock.elapsedRealtime() - start;
+                    Log.d(TAG, "Restored " + strokes.size() + " strokes in " + millis + "ms");
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSessionRestored(restoredImage, strokes, undoneStrokes, millis);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "Failed to restore session", e);
+                    bitmapPool.put(image);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSessionRestoreFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // Restart the quiet period, unless the oldest pending record has already waited long enough
+    private void recordAppended() {
+        long now = DrawingMetrics.now();
+        if (pendingCount == 0) {
+            pendingSince = now;
+        }
+        pendingCount++;
+        long waitedMillis = (now - pendingSince) / 1_000_000;
+        mainHandler.removeCallbacks(autosave);
+        mainHandler.postDelayed(autosave, Math.max(0, Math.min(AUTOSAVE_DELAY_MILLIS, AUTOSAVE_MAX_DELAY_MILLIS - waitedMillis)));
+    }
+
+    private void discardPending() {
+        mainHandler.removeCallbacks(autosave);
+        pendingRecords.reset();
+        pendingCount = 0;
+    }
+
+    // Finish or drop a snapshot the process died in the middle of. An image still under its temporary
+    // name was never committed, so the previous session stands; once it has been renamed, the new log
+    // (written before the rename) replaces the old one.
+    private void recover() {
+        if (imageTempFile.exists()) {
+            imageTempFile.delete();
+            logTempFile.delete();
+        } else if (logTempFile.exists() && !logTempFile.renameTo(logFile)) {
+            Log.w(TAG, "Cannot move " + logTempFile + " into place");
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Cannot rename " + from + " to " + to);
+        }
+    }
+
+    private void truncateLog(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            file.setLength(length);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void writeLog(byte[] records, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(records);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void openLog(boolean append) throws IOException {
+        logFileStream = new FileOutputStream(logFile, append);
+        logStream = new DataOutputStream(new BufferedOutputStream(logFileStream));
+    }
+
+    private void writeSourceFile(String sourcePath, long sessionId) throws IOException {
+        if (sourcePath == null) {
+            sourceFile.delete();
+            return;
+        }
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(sourceFile));
+        try {
+            out.writeUTF(sourcePath);
+            out.writeLong(sessionId);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, Stroke stroke) throws IOException {
+        out.writeByte(RECORD_ADD);
+        stroke.writeTo(out);
+    }
+
+    // The document image is ARGB_8888 or RGB_565; anything else is stored as ARGB_8888
+    private static Bitmap.Config snapshotConfig(Bitmap image) {
+        return image.getConfig() == Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    private static void writeImage(Bitmap image, File imageFile) throws IOException {
+        boolean isRgb565 = image.getConfig() == Bitmap.Config.RGB_565;
+        long size = IMAGE_HEADER_SIZE + (long) image.getWidth() * image.getHeight() * (isRgb565 ? 2 : 4);
+        RandomAccessFile file = new RandomAccessFile(imageFile, "rw");
+        try {
+            file.setLength(size);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(IMAGE_MAGIC);
+            buffer.putInt(image.getWidth());
+            buffer.putInt(image.getHeight());
+            buffer.putInt(isRgb565 ? CONFIG_RGB_565 : CONFIG_ARGB_8888);
+            image.copyPixelsToBuffer(buffer);
+            buffer.force();
+        } finally {
+            file.close();
+        }
+    }
+
+    private Bitmap readImage() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(imageFile, "r");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.remaining() < IMAGE_HEADER_SIZE || buffer.getInt() != IMAGE_MAGIC) {
+                throw new IOException("Not a session image");
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int storedConfig = buffer.getInt();
+            if (storedConfig != CONFIG_ARGB_8888 && storedConfig != CONFIG_RGB_565) {
+                throw new IOException("Unknown session image config " + storedConfig);
+            }
+            boolean isRgb565 = storedConfig == CONFIG_RGB_565;
+            if (width <= 0 || height <= 0 || buffer.remaining() < (long) width * height * (isRgb565 ? 2 : 4)) {
+                throw new IOException("Truncated session image");
+            }
+            Bitmap image = bitmapPool.get(width, height, isRgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+            image.copyPixelsFromBuffer(buffer);
+            return image;
+        } finally {
+            file.close();
+        }
+    }
+
+    // Parse the whole log into the history, returning the length of its intact records. The history is
+    // replayed in full rather than on demand, since restoring resets the view to the whole image and
+    // the first frame needs every visible stroke drawn anyway.
+    private long readLog(List<Stroke> strokes, List<Stroke> undoneStrokes) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "r");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+            // undoneStrokes is used as a stack with the next redo at index 0
+            while (buffer.hasRemaining()) {
+                int recordStart = buffer.position();
+                try {
+                    byte type = in.readByte();
+                    if (type == RECORD_ADD) {
+                        strokes.add(Stroke.readFrom(in));
+                        undoneStrokes.clear();
+                    } else if (type == RECORD_UNDO) {
+                        if (!strokes.isEmpty()) {
+                            undoneStrokes.add(0, strokes.remove(strokes.size() - 1));
+                        }
+                    } else if (type == RECORD_REDO) {
+                        if (!undoneStrokes.isEmpty()) {
+                            strokes.add(undoneStrokes.remove(0));
+                        }
+                    } else {
+                        throw new IOException("Unknown record type " + type);
+                    }
+                } catch (EOFException e) {
+                    // The process died halfway through a record; everything before it is intact
+                    Log.w(TAG, "Ignoring truncated record at " + recordStart);
+                    return recordStart;
+                } catch (IOException e) {
+                    // A damaged record; keep the history up to it rather than losing the whole session
+                    Log.w(TAG, "Ignoring damaged log from " + recordStart, e);
+                    return recordStart;
+                }
+            }
+            return buffer.position();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void closeLog() {
+        if (logStream != null) {
+            try {
+                logStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close session log", e);
+            }
+            logStream = null;
+            logFileStream = null;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.combined;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Picture;
+import android.graphics.RectF;
+
+/**
+ * A shape or text stroke recorded once into a Picture and replayed wherever the stroke is drawn.
+ *
+ * A freehand stroke replays a path with a segment per sample each time a tile under it is redrawn; a
+ * shape is a single primitive, and with the text laid out when it is recorded a label replays as cheaply.
+ * The recording is relative to the stroke's bounds, so moving the stroke (e.g. after a crop) only moves
+ * where it is replayed. Nothing is recorded again unless the stroke is replaced, e.g. by a scaled copy.
+ */
+public class ShapeDisplayList {
+
+    private final Picture picture = new Picture();
+    private float left, top; // Where the recording is replayed, in layer coordinates
+
+    ShapeDisplayList(Stroke stroke, PaintCache paints) {
+        left = stroke.getLeft();
+        top = stroke.getTop();
+        Canvas canvas = picture.beginRecording((int) Math.ceil(stroke.getRight() - left),
+                (int) Math.ceil(stroke.getBottom() - top));
+        canvas.translate(-left, -top);
+        record(canvas, stroke, paints);
+        picture.endRecording();
+    }
+
+    public void offset(float dx, float dy) {
+        left += dx;
+        top += dy;
+    }
+
+    public void draw(Canvas canvas) {
+        canvas.save();
+        canvas.translate(left, top);
+        canvas.drawPicture(picture);
+        canvas.restore();
+    }
+
+    private static void record(Canvas canvas, Stroke stroke, PaintCache paints) {
+        float x0 = stroke.getX(0), y0 = stroke.getY(0), x1 = stroke.getX(1), y1 = stroke.getY(1);
+        Paint paint = paints.get(stroke.getColor(), stroke.getWidth(), Paint.Cap.ROUND);
+        switch (stroke.getShape()) {
+            case LINE:
+                canvas.drawLine(x0, y0, x1, y1, paint);
+                break;
+            case ARROW: {
+                // The shaft, then the head through the outline's points on either side of the tip
+                Path arrow = new Path();
+                arrow.moveTo(x0, y0);
+                arrow.lineTo(x1, y1);
+                arrow.moveTo(stroke.getOutlineX(2), stroke.getOutlineY(2));
+                arrow.lineTo(x1, y1);
+                arrow.lineTo(stroke.getOutlineX(4), stroke.getOutlineY(4));
+                canvas.drawPath(arrow, paint);
+                break;
+            }
+            case RECTANGLE:
+                canvas.drawRect(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1), paint);
+                break;
+            case ELLIPSE:
+                canvas.drawOval(new RectF(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1)), paint);
+                break;
+            case TEXT: {
+                Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG); // Copied into the recording
+                textPaint.setColor(stroke.getColor());
+                textPaint.setTextSize(stroke.getWidth());
+                // Fitted to the advance it was added with, so its bounds hold with whatever font is used now
+                float measured = textPaint.measureText(stroke.getText());
+                canvas.save();
+                canvas.translate(x0, y0);
+                if (measured > 0 && x1 > x0) {
+                    canvas.scale((x1 - x0) / measured, 1);
+                }
+                canvas.drawText(stroke.getText(), 0, 0, textPaint);
+                canvas.restore();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Not a shape: " + stroke.getShape());
+        }
+    }
+}
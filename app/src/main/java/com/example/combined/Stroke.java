@@ -0,0 +1,463 @@
+package com.example.combined;
+
+import android.graphics.Canvas;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One drawn stroke stored as primitive samples: x, y and pressure per point, plus an int colour and width.
+ *
+ * A pressure-sensitive stroke is drawn between 30% and 100% of its width depending on the pressure
+ * of each sample. The paths used for rendering are built on demand and cached as {@link StrokeRuns}.
+ * An eraser is stored in the history like any other stroke but never drawn; committing it hides the
+ * strokes its path touches, and undoing it shows them again.
+ * Lines, arrows, rectangles, ellipses and text are strokes too, stored as two points (plus the text)
+ * instead of samples, and drawn from a {@link ShapeDisplayList} recorded once per stroke.
+ * Apart from that the class is plain Java, so stroke logic can be tested and benchmarked on the JVM,
+ * and it has a compact binary form for persistence.
+ */
+public class Stroke {
+
+    public static final int FLOATS_PER_POINT = 3; // x, y, pressure
+
+    // What a stroke draws: the curve through its samples, or a primitive given by its two points
+    public enum Shape {
+        FREEHAND,
+        LINE, // From the first point to the second
+        ARROW, // A line with its head at the second point
+        RECTANGLE, // With the two points as opposite corners
+        ELLIPSE, // Inside the rectangle the two points span
+        TEXT // On the baseline from the first point, fitted to end at the second
+    }
+
+    private static final int MAGIC = 0x53544b31; // "STK1"
+
+    // Stored in the high bits of the width, so strokes written before these flags existed still read back
+    private static final int WIDTH_MASK = 0xFFFF;
+    private static final int PRESSURE_SENSITIVE_FLAG = 1 << 16;
+    private static final int LAYER_SHIFT = 17;
+    private static final int LAYER_MASK = 0xFF;
+    private static final int ERASER_FLAG = 1 << 25;
+    private static final int TOPMOST_ONLY_FLAG = 1 << 26;
+    private static final int SHAPE_SHIFT = 27;
+    private static final int SHAPE_MASK = 0x7;
+
+    public static final int MAX_LAYERS = LAYER_MASK + 1;
+
+    private static final float MIN_PRESSURE_SCALE = 0.3f;
+
+    private static final int ELLIPSE_SEGMENTS = 32; // Of the polygon an ellipse is hit-tested against
+    private static final float ARROW_HEAD_SIN = 0.5f; // Each side of the head is 30 degrees off the shaft
+    private static final float ARROW_HEAD_COS = 0.866f;
+
+    private final float[] points;
+    private final int pointCount;
+    private final int color;
+    private final int width; // Width at full pressure
+    private final boolean isPressureSensitive;
+    private final Shape shape;
+    private final String text; // Only for TEXT, whose width is the text size
+    private int layer; // Index of the document layer the stroke is drawn on
+    private boolean isEraser;
+    private boolean isTopmostOnly; // An eraser that only removes the topmost stroke it touches
+    private boolean isErased; // Hidden by an eraser that is currently in the history
+    private int[] erasedIndices; // History indices of the strokes an applied eraser hid
+
+    private float left, top, right, bottom; // Covered area, including half the width and anti-aliasing
+    private StrokeRuns runs; // Built lazily from the samples
+    private float[] outline; // Shapes only: x, y pairs along what is drawn, for bounds and hit-testing
+    private ShapeDisplayList displayList; // Shapes only: recorded on first draw
+
+    public Stroke(float[] points, int pointCount, int color, int width) {
+        this(points, pointCount, color, width, false);
+    }
+
+    public Stroke(float[] points, int pointCount, int color, int width, boolean isPressureSensitive) {
+        if (pointCount < 1 || points.length < pointCount * FLOATS_PER_POINT) {
+            throw new IllegalArgumentException("Stroke needs at least one point");
+        }
+        this.points = points;
+        this.pointCount = pointCount;
+        this.color = color;
+        this.width = width;
+        this.isPressureSensitive = isPressureSensitive;
+        this.shape = Shape.FREEHAND;
+        this.text = null;
+        computeBounds();
+    }
+
+    private Stroke(Shape shape, float[] points, int color, int width, String text) {
+        this.points = points;
+        this.pointCount = 2;
+        this.color = color;
+        this.width = width;
+        this.isPressureSensitive = false;
+        this.shape = shape;
+        this.text = text;
+        computeBounds();
+    }
+
+    // A line, arrow, rectangle or ellipse between two points
+    public static Stroke shape(Shape shape, float x0, float y0, float x1, float y1, int color, int width) {
+        if (shape == Shape.FREEHAND || shape == Shape.TEXT) {
+            throw new IllegalArgumentException("Not a two-point shape: " + shape);
+        }
+        return new Stroke(shape, new float[]{x0, y0, 1, x1, y1, 1}, color, width, null);
+    }
+
+    // Text of the given size on the baseline from x, y; the advance is its width as measured when it was added
+    public static Stroke text(String text, float x, float y, float advance, int color, int size) {
+        return new Stroke(Shape.TEXT, new float[]{x, y, 1, x + advance, y, 1}, color, size, text);
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    public float getX(int index) {
+        return points[index * FLOATS_PER_POINT];
+    }
+
+    public float getY(int index) {
+        return points[index * FLOATS_PER_POINT + 1];
+    }
+
+    public float getPressure(int index) {
+        return points[index * FLOATS_PER_POINT + 2];
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public boolean isPressureSensitive() {
+        return isPressureSensitive;
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // The polyline geometry queries test against: the samples of a freehand stroke, or what a shape draws
+    public int getOutlineCount() {
+        return shape == Shape.FREEHAND ? pointCount : getOutline().length / 2;
+    }
+
+    public float getOutlineX(int index) {
+        return shape == Shape.FREEHAND ? getX(index) : getOutline()[index * 2];
+    }
+
+    public float getOutlineY(int index) {
+        return shape == Shape.FREEHAND ? getY(index) : getOutline()[index * 2 + 1];
+    }
+
+    public int getLayer() {
+        return layer;
+    }
+
+    void setLayer(int layer) {
+        if (layer < 0 || layer >= MAX_LAYERS) {
+            throw new IllegalArgumentException("Layer out of range: " + layer);
+        }
+        this.layer = layer;
+    }
+
+    public boolean isEraser() {
+        return isEraser;
+    }
+
+    public boolean isTopmostOnly() {
+        return isTopmostOnly;
+    }
+
+    // An eraser along the same samples, removing what is within half the width of them
+    public Stroke toEraser(boolean isTopmostOnly) {
+        Stroke eraser = new Stroke(points, pointCount, 0, width);
+        eraser.isEraser = true;
+        eraser.isTopmostOnly = isTopmostOnly;
+        eraser.layer = layer;
+        return eraser;
+    }
+
+    public boolean isErased() {
+        return isErased;
+    }
+
+    void setErased(boolean erased) {
+        isErased = erased;
+    }
+
+    int[] getErasedIndices() {
+        return erasedIndices;
+    }
+
+    void setErasedIndices(int[] indices) {
+        erasedIndices = indices;
+    }
+
+    // Width of the segment ending at the given sample
+    public int getWidthAt(int index) {
+        return isPressureSensitive ? widthForPressure(width, getPressure(index)) : width;
+    }
+
+    // Rounded so that neighbouring samples with similar pressure share a run and a paint
+    public static int widthForPressure(int width, float pressure) {
+        float clamped = Math.max(0f, Math.min(1f, pressure));
+        return Math.max(1, Math.round(width * (MIN_PRESSURE_SCALE + (1 - MIN_PRESSURE_SCALE) * clamped)));
+    }
+
+    public float getLeft() {
+        return left;
+    }
+
+    public float getTop() {
+        return top;
+    }
+
+    public float getRight() {
+        return right;
+    }
+
+    public float getBottom() {
+        return bottom;
+    }
+
+    public boolean intersects(float left, float top, float right, float bottom) {
+        return this.left < right && left < this.right && this.top < bottom && top < this.bottom;
+    }
+
+    // Move every sample, e.g. after the image has been cropped
+    public void offset(float dx, float dy) {
+        for (int i = 0; i < pointCount; i++) {
+            points[i * FLOATS_PER_POINT] += dx;
+            points[i * FLOATS_PER_POINT + 1] += dy;
+        }
+        left += dx;
+        right += dx;
+        top += dy;
+        bottom += dy;
+        if (runs != null) {
+            runs.offset(dx, dy);
+        }
+        outline = null;
+        if (displayList != null) {
+            displayList.offset(dx, dy); // Replayed somewhere else, not recorded again
+        }
+    }
+
+    // Copy with every sample scaled, e.g. to stamp strokes drawn on one image onto a differently sized one
+    public Stroke scaled(float scaleX, float scaleY) {
+        float[] scaledPoints = new float[pointCount * FLOATS_PER_POINT];
+        for (int i = 0; i < pointCount; i++) {
+            scaledPoints[i * FLOATS_PER_POINT] = getX(i) * scaleX;
+            scaledPoints[i * FLOATS_PER_POINT + 1] = getY(i) * scaleY;
+            scaledPoints[i * FLOATS_PER_POINT + 2] = getPressure(i);
+        }
+        int scaledWidth = Math.max(1, Math.round(width * (scaleX + scaleY) / 2));
+        Stroke scaled = shape == Shape.FREEHAND
+                ? new Stroke(scaledPoints, pointCount, color, scaledWidth, isPressureSensitive)
+                : new Stroke(shape, scaledPoints, color, scaledWidth, text);
+        scaled.layer = layer;
+        scaled.isEraser = isEraser;
+        scaled.isTopmostOnly = isTopmostOnly;
+        return scaled;
+    }
+
+    // Bytes held by the samples, which is what a stroke costs in memory and on disk
+    public int getByteSize() {
+        return pointCount * FLOATS_PER_POINT * 4 + (text != null ? text.length() * 2 : 0);
+    }
+
+    // Draw the stroke onto a layer: a shape replays its display list, a freehand stroke its runs
+    public void draw(Canvas canvas, PaintCache paints) {
+        if (shape == Shape.FREEHAND) {
+            getRuns().draw(canvas, color, paints);
+            return;
+        }
+        if (displayList == null) {
+            displayList = new ShapeDisplayList(this, paints);
+        }
+        displayList.draw(canvas);
+    }
+
+    // Quadratic curves through the midpoints of consecutive samples, the same shape StrokeBuilder draws live.
+    // For a shape, straight lines along its outline, which is close enough to preview it while it is dragged.
+    public StrokeRuns getRuns() {
+        if (runs == null) {
+            runs = new StrokeRuns();
+            if (shape != Shape.FREEHAND) {
+                runs.moveTo(getOutlineX(0), getOutlineY(0));
+                for (int i = 1; i < getOutlineCount() && shape != Shape.TEXT; i++) {
+                    runs.lineTo(getOutlineX(i), getOutlineY(i), width);
+                }
+                return runs;
+            }
+            runs.moveTo(getX(0), getY(0));
+            if (pointCount == 1) {
+                runs.lineTo(getX(0), getY(0), getWidthAt(0)); // A tap still leaves a dot
+            } else {
+                for (int i = 1; i < pointCount - 1; i++) {
+                    runs.quadTo(getX(i - 1), getY(i - 1), (getX(i - 1) + getX(i)) / 2, (getY(i - 1) + getY(i)) / 2,
+                            getWidthAt(i));
+                }
+                int last = pointCount - 1;
+                runs.quadTo(getX(last - 1), getY(last - 1), getX(last), getY(last), getWidthAt(last));
+            }
+        }
+        return runs;
+    }
+
+    // Used by StrokeBuilder, which has already built the identical runs while the stroke was drawn
+    void setCachedRuns(StrokeRuns runs) {
+        this.runs = runs;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(color);
+        out.writeInt(width | (isPressureSensitive ? PRESSURE_SENSITIVE_FLAG : 0) | (layer << LAYER_SHIFT)
+                | (isEraser ? ERASER_FLAG : 0) | (isTopmostOnly ? TOPMOST_ONLY_FLAG : 0)
+                | (shape.ordinal() << SHAPE_SHIFT));
+        out.writeInt(pointCount);
+        for (int i = 0; i < pointCount * FLOATS_PER_POINT; i++) {
+            out.writeFloat(points[i]);
+        }
+        if (shape == Shape.TEXT) {
+            out.writeUTF(text);
+        }
+    }
+
+    public static Stroke readFrom(DataInput in) throws IOException {
+        int color = in.readInt();
+        int widthAndFlags = in.readInt();
+        int pointCount = in.readInt();
+        if (pointCount < 1 || pointCount > 1 << 20) {
+            throw new IOException("Corrupt stroke: " + pointCount + " points");
+        }
+        int shapeIndex = (widthAndFlags >>> SHAPE_SHIFT) & SHAPE_MASK;
+        if (shapeIndex >= Shape.values().length || (shapeIndex != 0 && pointCount != 2)) {
+            throw new IOException("Corrupt stroke: shape " + shapeIndex + " with " + pointCount + " points");
+        }
+        Shape shape = Shape.values()[shapeIndex];
+        float[] points = new float[pointCount * FLOATS_PER_POINT];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = in.readFloat();
+        }
+        Stroke stroke = shape == Shape.FREEHAND
+                ? new Stroke(points, pointCount, color, widthAndFlags & WIDTH_MASK, (widthAndFlags & PRESSURE_SENSITIVE_FLAG) != 0)
+                : new Stroke(shape, points, color, widthAndFlags & WIDTH_MASK, shape == Shape.TEXT ? in.readUTF() : null);
+        stroke.layer = (widthAndFlags >>> LAYER_SHIFT) & LAYER_MASK;
+        stroke.isEraser = (widthAndFlags & ERASER_FLAG) != 0;
+        stroke.isTopmostOnly = (widthAndFlags & TOPMOST_ONLY_FLAG) != 0;
+        return stroke;
+    }
+
+    public static void writeList(List<Stroke> strokes, DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(strokes.size());
+        for (Stroke stroke : strokes) {
+            stroke.writeTo(out);
+        }
+    }
+
+    public static List<Stroke> readList(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a stroke list");
+        }
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt stroke list: " + count + " strokes");
+        }
+        List<Stroke> strokes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strokes.add(readFrom(in));
+        }
+        return strokes;
+    }
+
+    private float[] getOutline() {
+        if (outline == null) {
+            outline = buildOutline();
+        }
+        return outline;
+    }
+
+    private float[] buildOutline() {
+        float x0 = getX(0), y0 = getY(0), x1 = getX(1), y1 = getY(1);
+        switch (shape) {
+            case ARROW: {
+                // Shaft, then back and forth along the two sides of the head
+                float length = (float) Math.hypot(x1 - x0, y1 - y0);
+                float head = Math.min(Math.max(width * 3f, 12f), length / 2);
+                float ux = length > 0 ? (x1 - x0) / length : 0;
+                float uy = length > 0 ? (y1 - y0) / length : 0;
+                return new float[]{x0, y0, x1, y1,
+                        x1 - head * (ux * ARROW_HEAD_COS - uy * ARROW_HEAD_SIN), y1 - head * (uy * ARROW_HEAD_COS + ux * ARROW_HEAD_SIN),
+                        x1, y1,
+                        x1 - head * (ux * ARROW_HEAD_COS + uy * ARROW_HEAD_SIN), y1 - head * (uy * ARROW_HEAD_COS - ux * ARROW_HEAD_SIN)};
+            }
+            case RECTANGLE:
+                return new float[]{x0, y0, x1, y0, x1, y1, x0, y1, x0, y0};
+            case ELLIPSE: {
+                float[] polygon = new float[(ELLIPSE_SEGMENTS + 1) * 2];
+                for (int i = 0; i <= ELLIPSE_SEGMENTS; i++) {
+                    double angle = 2 * Math.PI * i / ELLIPSE_SEGMENTS;
+                    polygon[i * 2] = (x0 + x1) / 2 + (x1 - x0) / 2 * (float) Math.cos(angle);
+                    polygon[i * 2 + 1] = (y0 + y1) / 2 + (y1 - y0) / 2 * (float) Math.sin(angle);
+                }
+                return polygon;
+            }
+            case TEXT: {
+                // Through the middle of the lower-case letters; half the text size either side covers them
+                float middle = y0 - width * 0.3f;
+                return new float[]{x0, middle, x1, middle};
+            }
+            default:
+                return new float[]{x0, y0, x1, y1};
+        }
+    }
+
+    private void computeBounds() {
+        if (shape == Shape.TEXT) {
+            // Ascenders reach about the text size above the baseline and descenders a third of it below;
+            // glyphs may overhang the advance a little at either end
+            float overhang = width * 0.15f + 1;
+            left = Math.min(getX(0), getX(1)) - overhang;
+            right = Math.max(getX(0), getX(1)) + overhang;
+            top = getY(0) - width * 1.15f - 1;
+            bottom = getY(0) + width * 0.35f + 1;
+            return;
+        }
+        // An ellipse stays inside the rectangle of its two points; anything else inside the hull of its outline
+        boolean isEllipse = shape == Shape.ELLIPSE;
+        int count = isEllipse ? pointCount : getOutlineCount();
+        left = right = getX(0);
+        top = bottom = getY(0);
+        for (int i = 1; i < count; i++) {
+            float x = isEllipse ? getX(i) : getOutlineX(i);
+            float y = isEllipse ? getY(i) : getOutlineY(i);
+            left = Math.min(left, x);
+            right = Math.max(right, x);
+            top = Math.min(top, y);
+            bottom = Math.max(bottom, y);
+        }
+        // The curves stay inside the hull of the samples, and round caps and joins stay within half the
+        // full-pressure width of them; add that plus a pixel for anti-aliasing
+        float inset = width / 2f + 1;
+        left -= inset;
+        top -= inset;
+        right += inset;
+        bottom += inset;
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.combined;
+
+import android.graphics.RectF;
+
+/**
+ * Turns raw touch samples into a {@link Stroke} and the smoothed {@link StrokeRuns} for drawing it live.
+ *
+ * Samples closer than the minimum distance to the last accepted one are dropped, and the accepted
+ * ones are joined with quadratic curves through their midpoints. The area touched by segments added
+ * since the last call to {@link #takeDirtyBounds(RectF)} is tracked so callers can invalidate only that.
+ */
+public class StrokeBuilder {
+
+    private float minDistanceSquared;
+
+    private StrokeRuns runs;
+    private int width;
+    private boolean isPressureSensitive;
+    private float lastX, lastY; // Last accepted sample, used as the control point of the next curve
+    private float midX, midY; // End of the path so far
+    private float[] points = new float[64 * Stroke.FLOATS_PER_POINT]; // Accepted samples, grown as needed
+    private int pointCount;
+
+    private final RectF dirtyBounds = new RectF();
+    private boolean hasDirtyBounds;
+
+    public StrokeBuilder(float minDistance) {
+        setMinDistance(minDistance);
+    }
+
+    // In the coordinates samples are given in, so callers that scale them (e.g. by a zoom level) adjust it too
+    public void setMinDistance(float minDistance) {
+        minDistanceSquared = minDistance * minDistance;
+    }
+
+    // Width is the full-pressure width; without pressure sensitivity every segment is drawn at that width
+    public void begin(float x, float y, float pressure, int width, boolean isPressureSensitive) {
+        this.width = width;
+        this.isPressureSensitive = isPressureSensitive;
+        runs = new StrokeRuns();
+        runs.moveTo(x, y);
+        lastX = midX = x;
+        lastY = midY = y;
+        pointCount = 0;
+        appendPoint(x, y, pressure);
+        hasDirtyBounds = false;
+        includeDirty(x, y);
+    }
+
+    // Returns false when the sample was decimated
+    public boolean addPoint(float x, float y, float pressure) {
+        if (runs == null) {
+            return false;
+        }
+        float dx = x - lastX;
+        float dy = y - lastY;
+        if (dx * dx + dy * dy < minDistanceSquared) {
+            return false;
+        }
+
+        float newMidX = (lastX + x) / 2;
+        float newMidY = (lastY + y) / 2;
+        runs.quadTo(lastX, lastY, newMidX, newMidY, widthFor(pressure));
+
+        // The curve stays inside the triangle formed by its end points and control point
+        includeDirty(midX, midY);
+        includeDirty(lastX, lastY);
+        includeDirty(newMidX, newMidY);
+
+        lastX = x;
+        lastY = y;
+        midX = newMidX;
+        midY = newMidY;
+        appendPoint(x, y, pressure);
+        return true;
+    }
+
+    // Finish the stroke at the given point, which is never decimated; returns null if no stroke was started
+    public Stroke end(float x, float y, float pressure, int color) {
+        if (runs == null) {
+            return null;
+        }
+        runs.quadTo(lastX, lastY, x, y, widthFor(pressure));
+        includeDirty(midX, midY);
+        includeDirty(lastX, lastY);
+        includeDirty(x, y);
+        appendPoint(x, y, pressure);
+
+        // Trim the sample buffer to size and let the stroke keep the runs that were already built
+        float[] strokePoints = new float[pointCount * Stroke.FLOATS_PER_POINT];
+        System.arraycopy(points, 0, strokePoints, 0, strokePoints.length);
+        Stroke stroke = new Stroke(strokePoints, pointCount, color, width, isPressureSensitive);
+        stroke.setCachedRuns(runs);
+        runs = null;
+        return stroke;
+    }
+
+    public void cancel() {
+        runs = null;
+        hasDirtyBounds = false;
+    }
+
+    public boolean isActive() {
+        return runs != null;
+    }
+
+    public StrokeRuns getRuns() {
+        return runs;
+    }
+
+    // Full-pressure width of the current stroke, which bounds how far it extends around its samples
+    public int getWidth() {
+        return width;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    // Copy the bounds of the segments added since the last call into out; returns false if nothing changed
+    public boolean takeDirtyBounds(RectF out) {
+        if (!hasDirtyBounds) {
+            return false;
+        }
+        out.set(dirtyBounds);
+        hasDirtyBounds = false;
+        return true;
+    }
+
+    private int widthFor(float pressure) {
+        return isPressureSensitive ? Stroke.widthForPressure(width, pressure) : width;
+    }
+
+    private void appendPoint(float x, float y, float pressure) {
+        int offset = pointCount * Stroke.FLOATS_PER_POINT;
+        if (offset + Stroke.FLOATS_PER_POINT > points.length) {
+            float[] grown = new float[points.length * 2];
+            System.arraycopy(points, 0, grown, 0, offset);
+            points = grown;
+        }
+        points[offset] = x;
+        points[offset + 1] = y;
+        points[offset + 2] = pressure;
+        pointCount++;
+    }
+
+    private void includeDirty(float x, float y) {
+        if (hasDirtyBounds) {
+            dirtyBounds.union(x, y);
+        } else {
+            dirtyBounds.set(x, y, x, y);
+            hasDirtyBounds = true;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.combined;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid over the segments of every stroke in a history, used for hit-testing and erasing.
+ * Shapes take part through the segments of their outline.
+ *
+ * Each cell lists the history indices of the strokes with a segment passing near it. Strokes are only
+ * ever added at the end of the history or removed from the end, so the lists stay sorted and removal
+ * just drops the last entry. A query visits the cells it covers and then tests the actual segments of
+ * the strokes found there, so its cost depends on how much is drawn nearby rather than on the total
+ * number of strokes.
+ */
+public class StrokeIndex {
+
+    public static final int CELL_SIZE = 64;
+
+    private final int columns;
+    private final int rows;
+    private final int[][] cells; // Row-major, null until a stroke passes through
+    private final int[] cellSizes;
+    private final List<Stroke> strokes = new ArrayList<>(); // Mirrors the history, erasers included
+
+    // Reused query state; marks[i] == query once stroke i has been dealt with in the current query
+    private int[] marks = new int[16];
+    private int query;
+    private int[] hits = new int[16];
+    private int hitCount;
+    private int firstColumn, lastColumn, firstRow, lastRow;
+
+    public StrokeIndex(int width, int height) {
+        columns = Math.max(1, (width + CELL_SIZE - 1) / CELL_SIZE);
+        rows = Math.max(1, (height + CELL_SIZE - 1) / CELL_SIZE);
+        cells = new int[columns * rows][];
+        cellSizes = new int[columns * rows];
+    }
+
+    public int size() {
+        return strokes.size();
+    }
+
+    // Index the next stroke in the history; erasers take up an index but are never found by queries
+    public void add(Stroke stroke) {
+        int id = strokes.size();
+        strokes.add(stroke);
+        if (marks.length <= id) {
+            marks = Arrays.copyOf(marks, Math.max(id + 1, marks.length * 2));
+        }
+        if (stroke.isEraser()) {
+            return;
+        }
+        float inset = stroke.getWidth() / 2f + 1;
+        for (int i = 0; i < segmentCount(stroke); i++) {
+            setSegmentCells(stroke, i, inset);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    append(row * columns + column, id);
+                }
+            }
+        }
+    }
+
+    // Remove the last stroke, e.g. after it was undone
+    public Stroke removeLast() {
+        int id = strokes.size() - 1;
+        Stroke stroke = strokes.remove(id);
+        if (!stroke.isEraser()) {
+            float inset = stroke.getWidth() / 2f + 1;
+            for (int i = 0; i < segmentCount(stroke); i++) {
+                setSegmentCells(stroke, i, inset);
+                for (int row = firstRow; row <= lastRow; row++) {
+                    for (int column = firstColumn; column <= lastColumn; column++) {
+                        int cell = row * columns + column;
+                        if (cellSizes[cell] > 0 && cells[cell][cellSizes[cell] - 1] == id) {
+                            cellSizes[cell]--;
+                        }
+                    }
+                }
+            }
+        }
+        return stroke;
+    }
+
+    // History index of the topmost visible stroke on the layer within the radius of a point, or -1
+    public int hitTest(float x, float y, float radius, int layer) {
+        int best = -1;
+        setCells(x - radius, y - radius, x + radius, y + radius);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * columns + column;
+                // Newest first; anything older than the best hit so far cannot be on top of it
+                for (int j = cellSizes[cell] - 1; j >= 0 && cells[cell][j] > best; j--) {
+                    Stroke stroke = strokes.get(cells[cell][j]);
+                    if (isCandidate(stroke, layer) && touches(stroke, x, y, x, y, radius)) {
+                        best = cells[cell][j];
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    // History indices, in increasing order, of the visible strokes on the layer that pass within the
+    // radius of the given path's samples
+    public int[] findAlong(Stroke path, float radius, int layer) {
+        beginQuery();
+        for (int k = 0; k < segmentCount(path); k++) {
+            float ax = path.getOutlineX(k);
+            float ay = path.getOutlineY(k);
+            float bx = path.getOutlineX(segmentEnd(path, k));
+            float by = path.getOutlineY(segmentEnd(path, k));
+            setCells(Math.min(ax, bx) - radius, Math.min(ay, by) - radius,
+                    Math.max(ax, bx) + radius, Math.max(ay, by) + radius);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    int cell = row * columns + column;
+                    for (int j = 0; j < cellSizes[cell]; j++) {
+                        int id = cells[cell][j];
+                        if (marks[id] == query) {
+                            continue;
+                        }
+                        Stroke stroke = strokes.get(id);
+                        if (!isCandidate(stroke, layer)) {
+                            marks[id] = query;
+                        } else if (touches(stroke, ax, ay, bx, by, radius)) {
+                            marks[id] = query;
+                            addHit(id);
+                        }
+                    }
+                }
+            }
+        }
+        return takeHits();
+    }
+
+    // History indices, in increasing order and from the given index on, of the visible strokes on the
+    // layer whose bounds overlap the region
+    public int[] findIn(float left, float top, float right, float bottom, int layer, int fromIndex) {
+        beginQuery();
+        setCells(left, top, right, bottom);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * columns + column;
+                for (int j = cellSizes[cell] - 1; j >= 0 && cells[cell][j] >= fromIndex; j--) {
+                    int id = cells[cell][j];
+                    if (marks[id] == query) {
+                        continue;
+                    }
+                    marks[id] = query;
+                    Stroke stroke = strokes.get(id);
+                    if (isCandidate(stroke, layer) && stroke.intersects(left, top, right, bottom)) {
+                        addHit(id);
+                    }
+                }
+            }
+        }
+        return takeHits();
+    }
+
+    // Whether any segment of the stroke, at its drawn width, comes within the radius of segment a-b
+    static boolean touches(Stroke stroke, float ax, float ay, float bx, float by, float radius) {
+        float queryLeft = Math.min(ax, bx) - radius;
+        float queryTop = Math.min(ay, by) - radius;
+        float queryRight = Math.max(ax, bx) + radius;
+        float queryBottom = Math.max(ay, by) + radius;
+        for (int i = 0; i < segmentCount(stroke); i++) {
+            int end = segmentEnd(stroke, i);
+            float cx = stroke.getOutlineX(i);
+            float cy = stroke.getOutlineY(i);
+            float dx = stroke.getOutlineX(end);
+            float dy = stroke.getOutlineY(end);
+            float reach = Math.max(stroke.getWidthAt(i), stroke.getWidthAt(end)) / 2f;
+            if (Math.max(cx, dx) + reach < queryLeft || Math.min(cx, dx) - reach > queryRight
+                    || Math.max(cy, dy) + reach < queryTop || Math.min(cy, dy) - reach > queryBottom) {
+                continue;
+            }
+            float limit = radius + reach;
+            if (segmentDistanceSquared(ax, ay, bx, by, cx, cy, dx, dy) <= limit * limit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Squared distance between segments a-b and c-d, zero when they cross
+    static float segmentDistanceSquared(float ax, float ay, float bx, float by,
+                                        float cx, float cy, float dx, float dy) {
+        if (segmentsCross(ax, ay, bx, by, cx, cy, dx, dy)) {
+            return 0;
+        }
+        return Math.min(Math.min(pointDistanceSquared(ax, ay, cx, cy, dx, dy), pointDistanceSquared(bx, by, cx, cy, dx, dy)),
+                Math.min(pointDistanceSquared(cx, cy, ax, ay, bx, by), pointDistanceSquared(dx, dy, ax, ay, bx, by)));
+    }
+
+    // Squared distance from point p to segment a-b
+    static float pointDistanceSquared(float px, float py, float ax, float ay, float bx, float by) {
+        float vx = bx - ax;
+        float vy = by - ay;
+        float lengthSquared = vx * vx + vy * vy;
+        float t = lengthSquared > 0 ? ((px - ax) * vx + (py - ay) * vy) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        float ex = ax + t * vx - px;
+        float ey = ay + t * vy - py;
+        return ex * ex + ey * ey;
+    }
+
+    private static boolean segmentsCross(float ax, float ay, float bx, float by,
+                                         float cx, float cy, float dx, float dy) {
+        float d1 = cross(cx, cy, dx, dy, ax, ay);
+        float d2 = cross(cx, cy, dx, dy, bx, by);
+        float d3 = cross(ax, ay, bx, by, cx, cy);
+        float d4 = cross(ax, ay, bx, by, dx, dy);
+        return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+    }
+
+    private static float cross(float ax, float ay, float bx, float by, float px, float py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    // A single sample counts as one segment of zero length
+    private static int segmentCount(Stroke stroke) {
+        return Math.max(1, stroke.getOutlineCount() - 1);
+    }
+
+    private static int segmentEnd(Stroke stroke, int segment) {
+        return Math.min(segment + 1, stroke.getOutlineCount() - 1);
+    }
+
+    private static boolean isCandidate(Stroke stroke, int layer) {
+        return stroke.getLayer() == layer && !stroke.isErased();
+    }
+
+    private void setSegmentCells(Stroke stroke, int segment, float inset) {
+        int end = segmentEnd(stroke, segment);
+        float ax = stroke.getOutlineX(segment);
+        float ay = stroke.getOutlineY(segment);
+        float bx = stroke.getOutlineX(end);
+        float by = stroke.getOutlineY(end);
+        setCells(Math.min(ax, bx) - inset, Math.min(ay, by) - inset, Math.max(ax, bx) + inset, Math.max(ay, by) + inset);
+    }
+
+    // Cells covering the given area; anything outside the grid falls into the edge cells
+    private void setCells(float left, float top, float right, float bottom) {
+        firstColumn = clamp((int) Math.floor(left / CELL_SIZE), columns);
+        lastColumn = clamp((int) Math.floor(right / CELL_SIZE), columns);
+        firstRow = clamp((int) Math.floor(top / CELL_SIZE), rows);
+        lastRow = clamp((int) Math.floor(bottom / CELL_SIZE), rows);
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(count - 1, value));
+    }
+
+    // A stroke usually has several segments in the same cell, but is only listed once
+    private void append(int cell, int id) {
+        int size = cellSizes[cell];
+        if (size > 0 && cells[cell][size - 1] == id) {
+            return;
+        }
+        if (cells[cell] == null) {
+            cells[cell] = new int[4];
+        } else if (size == cells[cell].length) {
+            cells[cell] = Arrays.copyOf(cells[cell], size * 2);
+        }
+        cells[cell][size] = id;
+        cellSizes[cell] = size + 1;
+    }
+
+    private void beginQuery() {
+        query++;
+        hitCount = 0;
+    }
+
+    private void addHit(int id) {
+        if (hitCount == hits.length) {
+            hits = Arrays.copyOf(hits, hitCount * 2);
+        }
+        hits[hitCount++] = id;
+    }
+
+    private int[] takeHits() {
+        int[] result = Arrays.copyOf(hits, hitCount);
+        Arrays.sort(result);
+        return result;
+    }
+}
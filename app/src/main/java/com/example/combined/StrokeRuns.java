@@ -0,0 +1,84 @@
+package com.example.combined;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+/**
+ * The smoothed outline of a stroke split into runs of equal width, one Path per run.
+ *
+ * A constant-width stroke is a single run. With pressure, a new run starts wherever the rounded width
+ * changes. Runs are drawn with round caps and joins, so neighbouring runs meet without seams.
+ */
+public class StrokeRuns {
+
+    private Path[] paths = new Path[1];
+    private int[] widths = new int[1];
+    private int count;
+    private float endX, endY; // Where the last segment ended, and the next run starts
+
+    // Start the outline; the first run is created by the first segment, which knows its width
+    public void moveTo(float x, float y) {
+        endX = x;
+        endY = y;
+    }
+
+    public void lineTo(float x, float y, int width) {
+        runFor(width).lineTo(x, y);
+        endX = x;
+        endY = y;
+    }
+
+    public void quadTo(float controlX, float controlY, float x, float y, int width) {
+        runFor(width).quadTo(controlX, controlY, x, y);
+        endX = x;
+        endY = y;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Path getPath(int run) {
+        return paths[run];
+    }
+
+    public int getWidth(int run) {
+        return widths[run];
+    }
+
+    public void offset(float dx, float dy) {
+        for (int i = 0; i < count; i++) {
+            paths[i].offset(dx, dy);
+        }
+        endX += dx;
+        endY += dy;
+    }
+
+    // Draw every run with a shared paint for its width; no Paint is modified
+    public void draw(Canvas canvas, int color, PaintCache paints) {
+        for (int i = 0; i < count; i++) {
+            canvas.drawPath(paths[i], paints.get(color, widths[i], Paint.Cap.ROUND));
+        }
+    }
+
+    private Path runFor(int width) {
+        if (count > 0 && widths[count - 1] == width) {
+            return paths[count - 1];
+        }
+        if (count == paths.length) {
+            Path[] grownPaths = new Path[count * 2];
+            int[] grownWidths = new int[count * 2];
+            System.arraycopy(paths, 0, grownPaths, 0, count);
+            System.arraycopy(widths, 0, grownWidths, 0, count);
+            paths = grownPaths;
+            widths = grownWidths;
+        }
+        Path path = new Path();
+        path.moveTo(endX, endY);
+        paths[count] = path;
+        widths[count] = width;
+        count++;
+        return path;
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.combined;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Square thumbnails of saved drawings for the gallery, from memory, from disk or decoded in the background.
+ *
+ * A thumbnail is decoded from the saved image at the smallest power-of-two sample size that still
+ * covers it, scaled the rest of the way and written to a disk cache as a small JPEG, so each save is
+ * only ever decoded at full size once. The most recently shown thumbnails stay in memory under a byte
+ * budget. Thumbnails are keyed by the save they were made from, so a newer save gets new ones, and the
+ * least recently used files are deleted once the disk cache outgrows MAX_DISK_BYTES.
+ *
+ * Apart from the decode thread, all methods must be called on the main thread.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+
+    private static final long MAX_DISK_BYTES = 32L * 1024 * 1024;
+    private static final int DISK_QUALITY = 85;
+
+    // One thread is enough for thumbnails and keeps them from competing with each other for memory
+    private static final ExecutorService DECODE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static ThumbnailCache instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final DrawingMetrics metrics = DrawingMetrics.getInstance();
+    private final File directory;
+    private final long maxMemoryBytes;
+
+    // Thumbnails by key, least recently shown first; only used on the main thread. Evicted thumbnails
+    // may still be on screen, so they are left to the GC instead of the bitmap pool.
+    private final LinkedHashMap<String, Bitmap> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes = -1; // Only used on the decode thread; -1 until the directory has been measured
+
+    private int memoryHitCount;
+    private int diskHitCount;
+    private int decodeCount;
+    private int failureCount;
+
+    public interface Callback {
+        // Called on the main thread; null if the saved image could not be read
+        void onThumbnailLoaded(Bitmap thumbnail);
+    }
+
+    // A queued load, which can be dropped e.g. when its grid cell is reused for another entry
+    public static class Request {
+        private volatile boolean isCancelled;
+
+        public void cancel() {
+            isCancelled = true;
+        }
+    }
+
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (instance == null) {
+            // A sixteenth of the heap holds a few screens of grid cells
+            instance = new ThumbnailCache(new File(context.getApplicationContext().getCacheDir(), "thumbnails"),
+                    Runtime.getRuntime().maxMemory() / 16);
+        }
+        return instance;
+    }
+
+    ThumbnailCache(File directory, long maxMemoryBytes) {
+        this.directory = directory;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    // Hand a size x size thumbnail of the saved image to the callback: right away from memory, returning
+    // null, or later from the decode thread, returning the request so it can be cancelled
+    public Request load(final SessionIndex.Entry entry, final File image, final int size, final Callback callback) {
+        final String key = entry.id + "_" + entry.savedMillis + "_" + size;
+        Bitmap cached = memory.get(key); // Also marks it as recently used
+        if (cached != null) {
+            synchronized (this) {
+                memoryHitCount++;
+            }
+            callback.onThumbnailLoaded(cached);
+            return null;
+        }
+
+        final Request request = new Request();
+        DECODE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled) {
+                    return; // Scrolled past before its turn came
+                }
+                final Bitmap thumbnail = loadOrDecode(key, image, entry.width, entry.height, size);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (thumbnail != null) {
+                            put(key, thumbnail);
+                        }
+                        if (!request.isCancelled) {
+                            callback.onThumbnailLoaded(thumbnail);
+                        }
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    public synchronized int getMemoryHitCount() {
+        return memoryHitCount;
+    }
+
+    public synchronized int getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    public synchronized int getDecodeCount() {
+        return decodeCount;
+    }
+
+    // Share of thumbnails that did not need the saved image decoded
+    public synchronized float getHitRate() {
+        int total = memoryHitCount + diskHitCount + decodeCount + failureCount;
+        return total > 0 ? (float) (memoryHitCount + diskHitCount) / total : 0;
+    }
+
+    // Largest power of two that keeps the sampled image covering a size x size square
+    static int sampleSizeFor(int width, int height, int size) {
+        int inSampleSize = 1;
+        while (Math.min(width, height) / (inSampleSize * 2) >= size) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ThumbnailCache memoryHits=" + memoryHitCount + " diskHits=" + diskHitCount + " decodes=" + decodeCount
+                + " failures=" + failureCount + " hitRate=" + Math.round(getHitRate() * 100) + "%"
+                + " memory=" + (memoryBytes / 1024) + "/" + (maxMemoryBytes / 1024) + "KB";
+    }
+
+    private void put(String key, Bitmap thumbnail) {
+        Bitmap previous = memory.put(key, thumbnail);
+        if (previous != null) {
+            memoryBytes -= previous.getAllocationByteCount();
+        }
+        memoryBytes += thumbnail.getAllocationByteCount();
+        Iterator<Map.Entry<String, Bitmap>> iterator = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                break; // Always keep the thumbnail that was just loaded
+            }
+            memoryBytes -= eldest.getValue().getAllocationByteCount();
+            iterator.remove();
+        }
+    }
+
+    // On the decode thread: the disk cache first, then the saved image itself
+    private Bitmap loadOrDecode(String key, File image, int width, int height, int size) {
+        File cachedFile = new File(directory, key + ".jpg");
+        long start = DrawingMetrics.now();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565; // Thumbnails of JPEGs have no alpha
+        if (cachedFile.exists()) {
+            Bitmap thumbnail = BitmapFactory.decodeFile(cachedFile.getPath(), options);
+            if (thumbnail != null) {
+                cachedFile.setLastModified(System.currentTimeMillis()); // For trimming the least recently used
+                metrics.record(DrawingMetrics.Operation.THUMBNAIL_DISK, start);
+                synchronized (this) {
+                    diskHitCount++;
+                }
+                return thumbnail;
+            }
+        }
+
+        options.inSampleSize = sampleSizeFor(width, height, size);
+        Bitmap sampled = BitmapFactory.decodeFile(image.getPath(), options);
+        if (sampled == null) {
+            Log.w(TAG, "Cannot decode " + image);
+            synchronized (this) {
+                failureCount++;
+            }
+            return null;
+        }
+        Bitmap thumbnail = centerCrop(sampled, size);
+        metrics.record(DrawingMetrics.Operation.THUMBNAIL, start);
+        synchronized (this) {
+            decodeCount++;
+        }
+        writeToDisk(cachedFile, thumbnail);
+        return thumbnail;
+    }
+
+    // Scale the shorter side down to size and cut the middle of the longer one
+    private static Bitmap centerCrop(Bitmap sampled, int size) {
+        int side = Math.min(sampled.getWidth(), sampled.getHeight());
+        if (side <= size) {
+            return sampled; // Smaller than a cell already; the ImageView scales it up
+        }
+        float scale = (float) size / side;
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled, Math.round(sampled.getWidth() * scale),
+                Math.round(sampled.getHeight() * scale), true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        Bitmap cropped = Bitmap.createBitmap(scaled, (scaled.getWidth() - size) / 2, (scaled.getHeight() - size) / 2,
+                Math.min(size, scaled.getWidth()), Math.min(size, scaled.getHeight()));
+        if (cropped != scaled) {
+            scaled.recycle();
+        }
+        return cropped;
+    }
+
+    private void writeToDisk(File file, Bitmap thumbnail) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, DISK_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache thumbnail " + file, e);
+            file.delete();
+            return;
+        }
+        if (diskBytes < 0) {
+            diskBytes = 0;
+            File[] files = directory.listFiles();
+            for (File cached : files != null ? files : new File[0]) {
+                diskBytes += cached.length();
+            }
+        } else {
+            diskBytes += file.length();
+        }
+        if (diskBytes > MAX_DISK_BYTES) {
+            trimDisk();
+        }
+    }
+
+    // Delete the least recently used thumbnails until the cache is down to three quarters of its limit
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified()); // Oldest first
+            }
+        });
+        for (int i = 0; i < files.length && diskBytes > MAX_DISK_BYTES * 3 / 4; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                diskBytes -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Drawing layer split into fixed-size tiles that are only allocated where something has been drawn.
+ *
+ * Memory therefore grows with the annotated area rather than with the image size, and all drawing,
+ * clearing and compositing is done one tile at a time.
+ */
+public class TiledLayer {
+
+    public static final int TILE_SIZE = 256;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final Bitmap[] tiles; // Row-major, null where nothing has been drawn
+
+    private final BitmapPool pool = BitmapPool.getInstance();
+    private final Canvas tileCanvas = new Canvas();
+    private final Rect tileRect = new Rect();
+
+    public TiledLayer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new Bitmap[columns * rows];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Draw a stroke whose bounds are known into every tile it touches, optionally limited to a clip region
+    public void drawStroke(Stroke stroke, PaintCache paints, RectF bounds, Rect clip) {
+        int firstColumn = Math.max(0, (int) Math.floor(bounds.left / TILE_SIZE));
+        int lastColumn = Math.min(columns - 1, (int) Math.floor(bounds.right / TILE_SIZE));
+        int firstRow = Math.max(0, (int) Math.floor(bounds.top / TILE_SIZE));
+        int lastRow = Math.min(rows - 1, (int) Math.floor(bounds.bottom / TILE_SIZE));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                setTileRect(column, row);
+                if (clip != null && !Rect.intersects(clip, tileRect)) {
+                    continue;
+                }
+                Canvas canvas = beginTile(obtainTile(column, row), column, row, clip);
+                stroke.draw(canvas, paints);
+                canvas.restore();
+            }
+        }
+    }
+
+    // Clear the given region, releasing tiles that it covers completely
+    public void clear(Rect region) {
+        forEachTileIn(region, new TileVisitor() {
+            @Override
+            public void visit(int index, int column, int row) {
+                if (tiles[index] == null) {
+                    return;
+                }
+                if (region.contains(tileRect)) {
+                    pool.put(tiles[index]);
+                    tiles[index] = null;
+                } else {
+                    Canvas canvas = beginTile(tiles[index], column, row, region);
+                    canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                    canvas.restore();
+                }
+            }
+        });
+    }
+
+    // Composite the allocated tiles onto a canvas in layer coordinates
+    public void drawTo(Canvas canvas, Paint paint) {
+        canvas.save();
+        canvas.clipRect(0, 0, width, height); // Edge tiles extend past the layer
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                Bitmap tile = tiles[row * columns + column];
+                if (tile != null) {
+                    canvas.drawBitmap(tile, column * TILE_SIZE, row * TILE_SIZE, paint);
+                }
+            }
+        }
+        canvas.restore();
+    }
+
+    public Snapshot snapshot() {
+        Bitmap[] copies = new Bitmap[tiles.length];
+        long byteCount = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                copies[i] = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+                tileCanvas.setBitmap(copies[i]);
+                tileCanvas.drawBitmap(tiles[i], 0, 0, null);
+                byteCount += copies[i].getAllocationByteCount();
+            }
+        }
+        tileCanvas.setBitmap(null);
+        return new Snapshot(copies, byteCount, pool);
+    }
+
+    // Copy the snapshot's pixels back into the given region; the region is expected to be cleared first
+    public void restore(final Snapshot snapshot, final Rect region) {
+        forEachTileIn(region, new TileVisitor() {
+            @Override
+            public void visit(int index, int column, int row) {
+                Bitmap saved = snapshot.tiles[index];
+                if (saved == null) {
+                    return;
+                }
+                Canvas canvas = beginTile(obtainTile(column, row), column, row, region);
+                canvas.drawBitmap(saved, column * TILE_SIZE, row * TILE_SIZE, null);
+                canvas.restore();
+            }
+        });
+    }
+
+    public int getAllocatedTileCount() {
+        int count = 0;
+        for (Bitmap tile : tiles) {
+            if (tile != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getByteCount() {
+        long byteCount = 0;
+        for (Bitmap tile : tiles) {
+            if (tile != null) {
+                byteCount += tile.getAllocationByteCount();
+            }
+        }
+        return byteCount;
+    }
+
+    public void release() {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                pool.put(tiles[i]);
+                tiles[i] = null;
+            }
+        }
+    }
+
+    // Saved copy of the allocated tiles, used as an undo checkpoint
+    public static class Snapshot implements UndoHistory.Checkpoint {
+        private final Bitmap[] tiles;
+        private final long byteCount;
+        private final BitmapPool pool;
+
+        Snapshot(Bitmap[] tiles, long byteCount, BitmapPool pool) {
+            this.tiles = tiles;
+            this.byteCount = byteCount;
+            this.pool = pool;
+        }
+
+        @Override
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        @Override
+        public void release() {
+            for (Bitmap tile : tiles) {
+                pool.put(tile);
+            }
+        }
+    }
+
+    private interface TileVisitor {
+        void visit(int index, int column, int row);
+    }
+
+    private void forEachTileIn(Rect region, TileVisitor visitor) {
+        int firstColumn = Math.max(0, region.left / TILE_SIZE);
+        int lastColumn = Math.min(columns - 1, (region.right - 1) / TILE_SIZE);
+        int firstRow = Math.max(0, region.top / TILE_SIZE);
+        int lastRow = Math.min(rows - 1, (region.bottom - 1) / TILE_SIZE);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                setTileRect(column, row);
+                visitor.visit(row * columns + column, column, row);
+            }
+        }
+    }
+
+    private Bitmap obtainTile(int column, int row) {
+        int index = row * columns + column;
+        if (tiles[index] == null) {
+            tiles[index] = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        }
+        return tiles[index];
+    }
+
+    private void setTileRect(int column, int row) {
+        tileRect.set(column * TILE_SIZE, row * TILE_SIZE, (column + 1) * TILE_SIZE, (row + 1) * TILE_SIZE);
+    }
+
+    // Point the shared canvas at a tile, translated so callers can draw in layer coordinates
+    private Canvas beginTile(Bitmap tile, int column, int row, Rect clip) {
+        tileCanvas.setBitmap(tile);
+        tileCanvas.save();
+        tileCanvas.translate(-column * TILE_SIZE, -row * TILE_SIZE);
+        if (clip != null) {
+            tileCanvas.clipRect(clip);
+        }
+        return tileCanvas;
+    }
+}
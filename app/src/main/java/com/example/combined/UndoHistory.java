@@ -0,0 +1,177 @@
+package com.example.combined;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stroke history with periodic raster checkpoints.
+ *
+ * A checkpoint stored at index n holds the drawing layer as it looked after the first n strokes, so
+ * an undo only has to restore the nearest checkpoint and replay the strokes after it. Checkpoints are
+ * kept within a memory budget and the least recently used ones are evicted first.
+ */
+public class UndoHistory<T> {
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 20;
+
+    public interface Checkpoint {
+        long getByteCount();
+
+        void release();
+    }
+
+    private final List<T> strokes = new ArrayList<>();
+    private final ArrayDeque<T> undoneStrokes = new ArrayDeque<>();
+    // Access ordered, so the first entry is always the least recently used checkpoint
+    private final LinkedHashMap<Integer, Checkpoint> checkpoints = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final int checkpointInterval;
+    private long memoryBudget;
+    private long checkpointBytes;
+
+    public UndoHistory(int checkpointInterval, long memoryBudget) {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("checkpointInterval must be positive");
+        }
+        this.checkpointInterval = checkpointInterval;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void add(T stroke) {
+        undoneStrokes.clear();
+        // Checkpoints beyond the current position describe a history that no longer exists
+        dropCheckpointsAbove(strokes.size());
+        strokes.add(stroke);
+    }
+
+    public T undo() {
+        if (strokes.isEmpty()) {
+            return null;
+        }
+        T stroke = strokes.remove(strokes.size() - 1);
+        undoneStrokes.push(stroke);
+        return stroke;
+    }
+
+    public T redo() {
+        if (undoneStrokes.isEmpty()) {
+            return null;
+        }
+        T stroke = undoneStrokes.pop();
+        strokes.add(stroke);
+        return stroke;
+    }
+
+    public boolean canUndo() {
+        return !strokes.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !undoneStrokes.isEmpty();
+    }
+
+    public int size() {
+        return strokes.size();
+    }
+
+    public T get(int index) {
+        return strokes.get(index);
+    }
+
+    public List<T> getStrokes() {
+        return Collections.unmodifiableList(strokes);
+    }
+
+    public Collection<T> getUndoneStrokes() {
+        return Collections.unmodifiableCollection(undoneStrokes);
+    }
+
+    // True when the current position is due a checkpoint that has not been taken yet
+    public boolean needsCheckpoint() {
+        int count = strokes.size();
+        return count > 0 && count % checkpointInterval == 0 && !checkpoints.containsKey(count);
+    }
+
+    // Store a checkpoint for the current position, evicting old ones to stay within the budget
+    public void putCheckpoint(Checkpoint checkpoint) {
+        if (checkpoint.getByteCount() > memoryBudget) {
+            checkpoint.release();
+            return;
+        }
+        Checkpoint previous = checkpoints.put(strokes.size(), checkpoint);
+        if (previous != null) {
+            checkpointBytes -= previous.getByteCount();
+            previous.release();
+        }
+        checkpointBytes += checkpoint.getByteCount();
+        trimToBudget();
+    }
+
+    // Index of the newest checkpoint at or before the given position, or 0 for the empty layer
+    public int nearestCheckpointIndex(int position) {
+        int nearest = 0;
+        for (Integer index : checkpoints.keySet()) {
+            if (index <= position && index > nearest) {
+                nearest = index;
+            }
+        }
+        return nearest;
+    }
+
+    // Returns the checkpoint at the given index and marks it as recently used
+    public Checkpoint getCheckpoint(int index) {
+        return checkpoints.get(index);
+    }
+
+    public int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        trimToBudget();
+    }
+
+    public void clear() {
+        strokes.clear();
+        undoneStrokes.clear();
+        clearCheckpoints();
+    }
+
+    // Drop the rasters but keep the strokes, e.g. when the strokes have been moved to a new coordinate space
+    public void clearCheckpoints() {
+        dropCheckpointsAbove(-1);
+    }
+
+    private void trimToBudget() {
+        Iterator<Map.Entry<Integer, Checkpoint>> iterator = checkpoints.entrySet().iterator();
+        while (checkpointBytes > memoryBudget && iterator.hasNext()) {
+            Checkpoint eldest = iterator.next().getValue();
+            iterator.remove();
+            checkpointBytes -= eldest.getByteCount();
+            eldest.release();
+        }
+    }
+
+    private void dropCheckpointsAbove(int position) {
+        Iterator<Map.Entry<Integer, Checkpoint>> iterator = checkpoints.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Checkpoint> entry = iterator.next();
+            if (entry.getKey() > position) {
+                iterator.remove();
+                checkpointBytes -= entry.getValue().getByteCount();
+                entry.getValue().release();
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.combined;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the memory-based concurrency limit in {@link BatchAnnotator}.
+ */
+public class BatchAnnotatorTest {
+
+    @Test
+    public void concurrency_isLimitedByMemoryCap() {
+        long perImage = 1000L * 1000 * 4 * 2 + 64 * 1024 + 512 * 1024; // Decode and upright copy
+        assertEquals(4, BatchAnnotator.maxConcurrentImages(perImage * 10, 1000, 1000, 4));
+        assertEquals(2, BatchAnnotator.maxConcurrentImages(perImage * 2, 1000, 1000, 4));
+    }
+
+    @Test
+    public void concurrency_isAtLeastOne() {
+        assertEquals(1, BatchAnnotator.maxConcurrentImages(1024, 4000, 3000, 8));
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.combined;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the sample size selection in {@link BitmapLoader}.
+ */
+public class BitmapLoaderTest {
+    @Test
+    public void inSampleSize_keepsBothDimensionsAboveRequest() {
+        // 48MP camera frame into a phone sized view
+        assertEquals(4, BitmapLoader.calculateInSampleSize(8000, 6000, 1080, 1400));
+        assertEquals(8, BitmapLoader.calculateInSampleSize(8000, 6000, 1000, 700));
+    }
+
+    @Test
+    public void inSampleSize_neverSamplesSmallImages() {
+        assertEquals(1, BitmapLoader.calculateInSampleSize(800, 600, 1080, 1400));
+        assertEquals(1, BitmapLoader.calculateInSampleSize(800, 600, 0, 0));
+    }
+
+    @Test
+    public void orientation_quarterTurnsSwapAxes() {
+        assertTrue(BitmapLoader.isTransposed(6)); // Rotate 90, the usual portrait photo
+        assertTrue(BitmapLoader.isTransposed(8));
+        assertTrue(BitmapLoader.isTransposed(5)); // Transpose
+        assertFalse(BitmapLoader.isTransposed(1));
+        assertFalse(BitmapLoader.isTransposed(3)); // Rotate 180
+        assertFalse(BitmapLoader.isTransposed(0)); // Undefined
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.combined;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the level selection in {@link ImagePyramid}.
+ */
+public class ImagePyramidTest {
+
+    @Test
+    public void sampleSize_isZeroUntilZoomedPastTheDocumentImage() {
+        assertEquals(0, ImagePyramid.sampleSizeFor(4, 1)); // The document image is exactly as sharp
+        assertEquals(0, ImagePyramid.sampleSizeFor(4, 0.5f));
+        assertEquals(0, ImagePyramid.sampleSizeFor(1, 3)); // The source is no bigger than the document image
+        assertEquals(0, ImagePyramid.sampleSizeFor(0, 3)); // Not open yet
+    }
+
+    @Test
+    public void sampleSize_keepsAtLeastOneSourcePixelPerScreenPixel() {
+        assertEquals(2, ImagePyramid.sampleSizeFor(4, 1.5f));
+        assertEquals(2, ImagePyramid.sampleSizeFor(4, 2));
+        assertEquals(1, ImagePyramid.sampleSizeFor(4, 3));
+        assertEquals(1, ImagePyramid.sampleSizeFor(4, 8)); // Full resolution, however far in
+        assertEquals(4, ImagePyramid.sampleSizeFor(10.5f, 2));
+        assertEquals(2, ImagePyramid.sampleSizeFor(2.5f, 1.1f)); // Sharper than the document image, if not by much
+    }
+
+    @Test
+    public void tileKey_separatesLevelsRowsAndColumns() {
+        assertNotEquals(ImagePyramid.tileKey(0, 1, 0), ImagePyramid.tileKey(0, 0, 1));
+        assertNotEquals(ImagePyramid.tileKey(1, 0, 0), ImagePyramid.tileKey(0, 0, 0));
+        assertNotEquals(ImagePyramid.tileKey(0, 1 << 20, 0), ImagePyramid.tileKey(0, 0, 1 << 20));
+    }
+}
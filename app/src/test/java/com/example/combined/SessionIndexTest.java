@@ -0,0 +1,79 @@
+package com.example.combined;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the file format of {@link SessionIndex}.
+ */
+public class SessionIndexTest {
+
+    @Test
+    public void entries_roundTripInOrder() throws IOException {
+        List<SessionIndex.Entry> entries = Arrays.asList(
+                new SessionIndex.Entry(1700000000000L, 1700000500000L, 1080, 1440),
+                new SessionIndex.Entry(1690000000000L, 1690000000000L, 4000, 3000));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionIndex.writeEntries(entries, new DataOutputStream(bytes));
+        assertEquals(8 + 24 * entries.size(), bytes.size());
+
+        List<SessionIndex.Entry> read = SessionIndex.readEntries(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(entries.size(), read.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(entries.get(i).id, read.get(i).id);
+            assertEquals(entries.get(i).savedMillis, read.get(i).savedMillis);
+            assertEquals(entries.get(i).width, read.get(i).width);
+            assertEquals(entries.get(i).height, read.get(i).height);
+        }
+    }
+
+    @Test
+    public void emptyIndex_roundTrips() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionIndex.writeEntries(new ArrayList<SessionIndex.Entry>(), new DataOutputStream(bytes));
+        assertTrue(SessionIndex.readEntries(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherData_isRejected() throws IOException {
+        SessionIndex.readEntries(new DataInputStream(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 0, 0, 0, 0})));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedIndex_isRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionIndex.writeEntries(Arrays.asList(new SessionIndex.Entry(1, 1, 10, 10)), new DataOutputStream(bytes));
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 4);
+        SessionIndex.readEntries(new DataInputStream(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void savedStrokes_roundTripWithTheirSize() throws IOException {
+        float[] points = new float[Stroke.FLOATS_PER_POINT * 2];
+        points[Stroke.FLOATS_PER_POINT] = 50;
+        List<Stroke> strokes = Arrays.asList(new Stroke(points, 2, 0xFFFF0000, 12),
+                Stroke.text("Hi", 10, 20, 30, 0xFF000000, 40));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionIndex.writeStrokes(new SessionIndex.SavedStrokes(1080, 1440, strokes), new DataOutputStream(bytes));
+
+        SessionIndex.SavedStrokes read = SessionIndex.readStrokes(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(1080, read.width);
+        assertEquals(1440, read.height);
+        assertEquals(2, read.strokes.size());
+        assertEquals(2, read.strokes.get(0).getPointCount());
+        assertEquals(0xFFFF0000, read.strokes.get(0).getColor());
+        assertEquals("Hi", read.strokes.get(1).getText());
+    }
+}
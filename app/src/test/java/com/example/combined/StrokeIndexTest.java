@@ -0,0 +1,101 @@
+package com.example.combined;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for grid lookups and segment distances in {@link StrokeIndex}.
+ */
+public class StrokeIndexTest {
+
+    private static Stroke line(float x0, float y0, float x1, float y1, int width) {
+        return new Stroke(new float[]{x0, y0, 1, x1, y1, 1}, 2, 0xFF000000, width);
+    }
+
+    @Test
+    public void segmentDistance_isZeroWhenCrossing() {
+        assertEquals(0f, StrokeIndex.segmentDistanceSquared(0, 0, 10, 10, 0, 10, 10, 0), 0f);
+        assertEquals(25f, StrokeIndex.segmentDistanceSquared(0, 0, 10, 0, 3, 5, 7, 5), 1e-4f);
+        assertEquals(2f, StrokeIndex.pointDistanceSquared(11, 1, 0, 0, 10, 0), 1e-4f);
+    }
+
+    @Test
+    public void hitTest_findsTopmostVisibleStrokeOnLayer() {
+        StrokeIndex index = new StrokeIndex(500, 500);
+        index.add(line(10, 100, 400, 100, 4));
+        index.add(line(200, 10, 200, 400, 4));
+        Stroke otherLayer = line(10, 100, 400, 100, 4);
+        otherLayer.setLayer(1);
+        index.add(otherLayer);
+
+        assertEquals(1, index.hitTest(201, 101, 3, 0)); // Where both cross, the newer one wins
+        assertEquals(0, index.hitTest(50, 104, 3, 0)); // Within half the width plus the radius
+        assertEquals(-1, index.hitTest(50, 110, 3, 0));
+        assertEquals(2, index.hitTest(50, 100, 3, 1));
+
+        index.add(line(10, 100, 400, 100, 4).toEraser(false)); // Erasers are never hit themselves
+        assertEquals(0, index.hitTest(50, 100, 3, 0));
+    }
+
+    @Test
+    public void hitTest_followsShapeOutlines() {
+        StrokeIndex index = new StrokeIndex(500, 500);
+        index.add(Stroke.shape(Stroke.Shape.RECTANGLE, 100, 100, 300, 300, 0xFF000000, 4));
+        index.add(Stroke.shape(Stroke.Shape.ELLIPSE, 100, 100, 300, 300, 0xFF000000, 4));
+
+        assertEquals(0, index.hitTest(300, 250, 3, 0)); // On the right edge of the rectangle
+        assertEquals(0, index.hitTest(105, 105, 3, 0)); // The ellipse does not reach into the corner
+        assertEquals(1, index.hitTest(200, 101, 3, 0)); // Where both touch, the newer one wins
+        assertEquals(-1, index.hitTest(200, 200, 3, 0)); // Nothing is drawn inside either
+    }
+
+    @Test
+    public void findAlong_returnsTouchedStrokesInHistoryOrder() {
+        StrokeIndex index = new StrokeIndex(500, 500);
+        index.add(line(10, 50, 400, 50, 4));
+        index.add(line(10, 300, 400, 300, 4));
+        index.add(line(100, 0, 100, 499, 4));
+        Stroke erased = line(10, 60, 400, 60, 4);
+        erased.setErased(true);
+        index.add(erased);
+
+        Stroke eraser = new Stroke(new float[]{5, 55, 1, 450, 55, 1}, 2, 0, 10).toEraser(false);
+        assertArrayEquals(new int[]{0, 2}, index.findAlong(eraser, 5, 0));
+    }
+
+    @Test
+    public void removeLast_dropsStrokeFromCells() {
+        StrokeIndex index = new StrokeIndex(500, 500);
+        index.add(line(10, 100, 400, 100, 4));
+        index.add(line(10, 100, 400, 100, 4));
+        assertEquals(1, index.hitTest(50, 100, 2, 0));
+        index.removeLast();
+        assertEquals(0, index.hitTest(50, 100, 2, 0));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void findIn_matchesLinearScan() {
+        Random random = new Random(1);
+        StrokeIndex index = new StrokeIndex(1000, 1000);
+        Stroke[] strokes = new Stroke[2000];
+        for (int i = 0; i < strokes.length; i++) {
+            float x = random.nextFloat() * 1000;
+            float y = random.nextFloat() * 1000;
+            strokes[i] = line(x, y, x + random.nextFloat() * 60 - 30, y + random.nextFloat() * 60 - 30, 5);
+            index.add(strokes[i]);
+        }
+
+        int[] found = index.findIn(300, 300, 420, 380, 0, 500);
+        int expected = 0;
+        for (int i = 500; i < strokes.length; i++) {
+            if (strokes[i].intersects(300, 300, 420, 380)) {
+                assertEquals(i, found[expected++]);
+            }
+        }
+        assertEquals(expected, found.length);
+    }
+}
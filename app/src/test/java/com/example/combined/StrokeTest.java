@@ -0,0 +1,183 @@
+package com.example.combined;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the primitive {@link Stroke} encoding.
+ */
+public class StrokeTest {
+
+    private static Stroke stroke(int color, int width, float... points) {
+        return new Stroke(points, points.length / Stroke.FLOATS_PER_POINT, color, width);
+    }
+
+    @Test
+    public void bounds_includeHalfWidthAndAntiAliasing() {
+        Stroke stroke = stroke(0xFF000000, 4, 10, 20, 1, 30, 5, 1);
+        assertEquals(7f, stroke.getLeft(), 0f);
+        assertEquals(2f, stroke.getTop(), 0f);
+        assertEquals(33f, stroke.getRight(), 0f);
+        assertEquals(23f, stroke.getBottom(), 0f);
+        assertTrue(stroke.intersects(0, 0, 8, 8));
+        assertFalse(stroke.intersects(34, 0, 40, 40));
+    }
+
+    @Test
+    public void offset_movesSamplesAndBounds() {
+        Stroke stroke = stroke(0xFF000000, 4, 10, 20, 1, 30, 5, 1);
+        stroke.offset(-10, -2);
+        assertEquals(0f, stroke.getX(0), 0f);
+        assertEquals(18f, stroke.getY(0), 0f);
+        assertEquals(-3f, stroke.getLeft(), 0f);
+        assertEquals(0f, stroke.getTop(), 0f);
+    }
+
+    @Test
+    public void scaled_copiesSamplesAndScalesWidth() {
+        Stroke stroke = stroke(0xFF000000, 4, 10, 20, 0.5f, 30, 5, 1);
+        Stroke scaled = stroke.scaled(2, 3);
+        assertEquals(20f, scaled.getX(0), 0f);
+        assertEquals(60f, scaled.getY(0), 0f);
+        assertEquals(0.5f, scaled.getPressure(0), 0f);
+        assertEquals(10, scaled.getWidth());
+        assertEquals(10f, stroke.getX(0), 0f); // The original is untouched
+    }
+
+    @Test
+    public void pressure_scalesWidthOnlyWhenSensitive() {
+        float[] points = {0, 0, 0f, 10, 0, 0.5f, 20, 0, 1f};
+        Stroke constant = new Stroke(points, 3, 0xFF000000, 20);
+        Stroke sensitive = new Stroke(points, 3, 0xFF000000, 20, true);
+        assertEquals(20, constant.getWidthAt(0));
+        assertEquals(6, sensitive.getWidthAt(0));
+        assertEquals(13, sensitive.getWidthAt(1));
+        assertEquals(20, sensitive.getWidthAt(2));
+        assertEquals(1, Stroke.widthForPressure(1, 0f)); // Never thinner than a pixel
+        // Bounds always cover the full-pressure width
+        assertEquals(-11f, sensitive.getLeft(), 0f);
+    }
+
+    @Test
+    public void binaryFormat_keepsPressureFlag() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        stroke(0xFF000000, 7, 1, 2, 0.5f).writeTo(new DataOutputStream(bytes));
+        new Stroke(new float[]{1, 2, 0.5f}, 1, 0xFF000000, 9, true).writeTo(new DataOutputStream(bytes));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Stroke constant = Stroke.readFrom(in);
+        Stroke sensitive = Stroke.readFrom(in);
+        assertFalse(constant.isPressureSensitive());
+        assertEquals(7, constant.getWidth());
+        assertTrue(sensitive.isPressureSensitive());
+        assertEquals(9, sensitive.getWidth());
+    }
+
+    @Test
+    public void binaryFormat_keepsLayer() throws IOException {
+        Stroke stroke = new Stroke(new float[]{1, 2, 0.5f}, 1, 0xFF000000, 9, true);
+        stroke.setLayer(Stroke.MAX_LAYERS - 1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        stroke.writeTo(new DataOutputStream(bytes));
+
+        Stroke decoded = Stroke.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(Stroke.MAX_LAYERS - 1, decoded.getLayer());
+        assertEquals(9, decoded.getWidth());
+        assertTrue(decoded.isPressureSensitive());
+        assertEquals(0, stroke(0xFF000000, 7, 1, 2, 0.5f).getLayer()); // Older strokes are on the bottom layer
+    }
+
+    @Test
+    public void binaryFormat_keepsEraserFlags() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        stroke(0xFF000000, 24, 1, 2, 1, 5, 6, 1).toEraser(false).writeTo(new DataOutputStream(bytes));
+        stroke(0xFF000000, 30, 1, 2, 1).toEraser(true).writeTo(new DataOutputStream(bytes));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Stroke path = Stroke.readFrom(in);
+        Stroke tap = Stroke.readFrom(in);
+        assertTrue(path.isEraser());
+        assertFalse(path.isTopmostOnly());
+        assertEquals(24, path.getWidth());
+        assertTrue(tap.isEraser());
+        assertTrue(tap.isTopmostOnly());
+        assertFalse(stroke(0xFF000000, 7, 1, 2, 0.5f).isEraser());
+    }
+
+    @Test
+    public void binaryFormat_roundTrips() throws IOException {
+        List<Stroke> strokes = Arrays.asList(
+                stroke(0xFFFF0000, 5, 1, 2, 0.5f, 3, 4, 0.75f),
+                stroke(0xFF0000FF, 12, 7, 8, 1));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Stroke.writeList(strokes, new DataOutputStream(bytes));
+        List<Stroke> decoded = Stroke.readList(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(2, decoded.size());
+        assertEquals(0xFFFF0000, decoded.get(0).getColor());
+        assertEquals(5, decoded.get(0).getWidth());
+        assertEquals(2, decoded.get(0).getPointCount());
+        assertEquals(0.75f, decoded.get(0).getPressure(1), 0f);
+        assertEquals(12, decoded.get(1).getWidth());
+        assertEquals(8f, decoded.get(1).getY(0), 0f);
+        // An 8 byte list header, then a 12 byte header per stroke plus 12 bytes per point
+        assertEquals(8 + 12 + 24 + 12 + 12, bytes.size());
+    }
+
+    @Test
+    public void shapes_boundOutlineAndKeepOnlyTwoPoints() {
+        Stroke rectangle = Stroke.shape(Stroke.Shape.RECTANGLE, 40, 30, 10, 20, 0xFF000000, 4);
+        assertEquals(2, rectangle.getPointCount());
+        assertEquals(5, rectangle.getOutlineCount()); // Closed around the four corners
+        assertEquals(7f, rectangle.getLeft(), 0f);
+        assertEquals(17f, rectangle.getTop(), 0f);
+        assertEquals(43f, rectangle.getRight(), 0f);
+        assertEquals(33f, rectangle.getBottom(), 0f);
+
+        // The head reaches past the shaft on either side of the tip
+        Stroke arrow = Stroke.shape(Stroke.Shape.ARROW, 0, 50, 100, 50, 0xFF000000, 4);
+        assertTrue(arrow.getTop() < 50 - 4 / 2f - 1);
+        assertTrue(arrow.getBottom() > 50 + 4 / 2f + 1);
+        assertEquals(103f, arrow.getRight(), 0f);
+
+        arrow.offset(-10, 5);
+        assertEquals(90f, arrow.getOutlineX(1), 0f); // The outline moves with the points
+        assertEquals(55f, arrow.getOutlineY(1), 0f);
+    }
+
+    @Test
+    public void binaryFormat_keepsShapesAndText() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Stroke.shape(Stroke.Shape.ELLIPSE, 1, 2, 30, 40, 0xFFFF0000, 6).writeTo(new DataOutputStream(bytes));
+        Stroke.text("Crack here", 5, 60, 120, 0xFF0000FF, 24).writeTo(new DataOutputStream(bytes));
+        stroke(0xFF000000, 7, 1, 2, 0.5f).writeTo(new DataOutputStream(bytes));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Stroke ellipse = Stroke.readFrom(in);
+        Stroke text = Stroke.readFrom(in);
+        Stroke freehand = Stroke.readFrom(in);
+        assertEquals(Stroke.Shape.ELLIPSE, ellipse.getShape());
+        assertEquals(30f, ellipse.getX(1), 0f);
+        assertEquals(6, ellipse.getWidth());
+        assertEquals(Stroke.Shape.TEXT, text.getShape());
+        assertEquals("Crack here", text.getText());
+        assertEquals(125f, text.getX(1), 0f); // The end of the advance
+        assertEquals(24, text.getWidth());
+        assertEquals(Stroke.Shape.FREEHAND, freehand.getShape());
+    }
+
+    @Test(expected = IOException.class)
+    public void binaryFormat_rejectsOtherData() throws IOException {
+        Stroke.readList(new DataInputStream(new ByteArrayInputStream(new byte[8])));
+    }
+}
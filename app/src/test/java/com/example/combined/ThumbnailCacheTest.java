@@ -0,0 +1,20 @@
+package com.example.combined;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the decode sample size in {@link ThumbnailCache}.
+ */
+public class ThumbnailCacheTest {
+
+    @Test
+    public void sampleSize_keepsTheShortSideCoveringTheCell() {
+        assertEquals(1, ThumbnailCache.sampleSizeFor(300, 400, 300)); // Only just covers it
+        assertEquals(4, ThumbnailCache.sampleSizeFor(4000, 3000, 400));
+        assertEquals(4, ThumbnailCache.sampleSizeFor(3000, 4000, 400)); // Portrait and landscape alike
+        assertEquals(8, ThumbnailCache.sampleSizeFor(4000, 3000, 360));
+        assertEquals(1, ThumbnailCache.sampleSizeFor(100, 100, 360)); // Smaller than the cell
+    }
+}
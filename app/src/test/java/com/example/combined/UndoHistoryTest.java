@@ -0,0 +1,94 @@
+package com.example.combined;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for checkpoint bookkeeping in {@link UndoHistory}.
+ */
+public class UndoHistoryTest {
+
+    private static class FakeCheckpoint implements UndoHistory.Checkpoint {
+        final long bytes;
+        boolean released;
+
+        FakeCheckpoint(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long getByteCount() {
+            return bytes;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static UndoHistory<String> historyWith(int strokes, int interval, long budget) {
+        UndoHistory<String> history = new UndoHistory<>(interval, budget);
+        for (int i = 0; i < strokes; i++) {
+            history.add("stroke" + i);
+            if (history.needsCheckpoint()) {
+                history.putCheckpoint(new FakeCheckpoint(100));
+            }
+        }
+        return history;
+    }
+
+    @Test
+    public void checkpoint_takenEveryInterval() {
+        UndoHistory<String> history = historyWith(25, 10, 1000);
+        assertEquals(2, history.getCheckpointCount());
+        assertEquals(20, history.nearestCheckpointIndex(25));
+        assertEquals(10, history.nearestCheckpointIndex(19));
+        assertEquals(0, history.nearestCheckpointIndex(9));
+    }
+
+    @Test
+    public void undoRedo_keepsCheckpointsValid() {
+        UndoHistory<String> history = historyWith(20, 10, 1000);
+        for (int i = 0; i < 5; i++) {
+            history.undo();
+        }
+        assertEquals(10, history.nearestCheckpointIndex(history.size()));
+        for (int i = 0; i < 5; i++) {
+            history.redo();
+        }
+        assertEquals(20, history.nearestCheckpointIndex(history.size()));
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    public void newStroke_dropsCheckpointsPastPosition() {
+        UndoHistory<String> history = historyWith(20, 10, 1000);
+        history.undo();
+        history.add("replacement");
+        assertFalse(history.canRedo());
+        assertEquals(1, history.getCheckpointCount());
+        assertEquals(100, history.getCheckpointBytes());
+    }
+
+    @Test
+    public void budget_evictsLeastRecentlyUsed() {
+        UndoHistory<String> history = historyWith(20, 10, 1000);
+        history.getCheckpoint(10); // Touch the older checkpoint
+        history.setMemoryBudget(150);
+        assertEquals(1, history.getCheckpointCount());
+        assertNotNull(history.getCheckpoint(10));
+        assertNull(history.getCheckpoint(20));
+    }
+
+    @Test
+    public void oversizedCheckpoint_isReleasedImmediately() {
+        UndoHistory<String> history = new UndoHistory<>(1, 50);
+        history.add("stroke");
+        FakeCheckpoint checkpoint = new FakeCheckpoint(100);
+        history.putCheckpoint(checkpoint);
+        assertTrue(checkpoint.released);
+        assertEquals(0, history.getCheckpointCount());
+    }
+}
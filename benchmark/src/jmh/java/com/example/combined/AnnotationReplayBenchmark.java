@@ -0,0 +1,101 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+
+/**
+ * Replaying a marked-up photo: the same boxes, ellipses, arrows and lines either traced freehand or
+ * added as shape primitives, all under a stroke whose undo redraws the whole image.
+ */
+@State(Scope.Thread)
+public class AnnotationReplayBenchmark {
+
+    private static final Stroke.Shape[] SHAPES = {
+            Stroke.Shape.RECTANGLE, Stroke.Shape.ELLIPSE, Stroke.Shape.ARROW, Stroke.Shape.LINE};
+    private static final float TRACE_STEP = 6; // Distance between touch samples when tracing by hand
+
+    @Param({"2048x1536"})
+    public String imageSize;
+
+    @Param({"200"})
+    public int annotationCount;
+
+    @Param({"freehand", "shapes"})
+    public String input;
+
+    private DrawingDocument document;
+    private Stroke cover;
+    private final Rect dirty = new Rect();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = BenchmarkStrokes.parseSize(imageSize);
+        document = new DrawingDocument(0); // No checkpoints, so an undo replays the whole history under it
+        Bitmap image = Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+        image.eraseColor(Color.WHITE);
+        document.setImage(image);
+
+        Random random = new Random(7);
+        for (int i = 0; i < annotationCount; i++) {
+            float x0 = random.nextFloat() * size[0] * 0.8f;
+            float y0 = random.nextFloat() * size[1] * 0.8f;
+            float x1 = x0 + 40 + random.nextFloat() * size[0] * 0.2f;
+            float y1 = y0 + 40 + random.nextFloat() * size[1] * 0.2f;
+            Stroke shape = Stroke.shape(SHAPES[i % SHAPES.length], x0, y0, x1, y1, Color.RED, BenchmarkStrokes.STROKE_WIDTH);
+            document.addStroke("shapes".equals(input) ? shape : trace(shape), dirty);
+        }
+        // A diagonal across the whole image, so undoing it replays every annotation
+        cover = new Stroke(new float[]{0, 0, 1, size[0], size[1], 1}, 2, Color.BLUE, size[0] + size[1]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        document.release();
+        BitmapPool.getInstance().clear();
+    }
+
+    @Benchmark
+    public Rect redrawAll() {
+        document.addStroke(cover, dirty);
+        document.undo(dirty);
+        return dirty;
+    }
+
+    // The shape as a finger would draw it: samples every few pixels along its outline
+    private static Stroke trace(Stroke shape) {
+        int count = 1;
+        for (int i = 1; i < shape.getOutlineCount(); i++) {
+            count += Math.max(1, (int) (distance(shape, i - 1, i) / TRACE_STEP));
+        }
+        float[] samples = new float[count * Stroke.FLOATS_PER_POINT];
+        int n = 0;
+        samples[n++] = shape.getOutlineX(0);
+        samples[n++] = shape.getOutlineY(0);
+        samples[n++] = 1;
+        for (int i = 1; i < shape.getOutlineCount(); i++) {
+            int steps = Math.max(1, (int) (distance(shape, i - 1, i) / TRACE_STEP));
+            for (int step = 1; step <= steps; step++) {
+                float t = (float) step / steps;
+                samples[n++] = shape.getOutlineX(i - 1) + (shape.getOutlineX(i) - shape.getOutlineX(i - 1)) * t;
+                samples[n++] = shape.getOutlineY(i - 1) + (shape.getOutlineY(i) - shape.getOutlineY(i - 1)) * t;
+                samples[n++] = 1;
+            }
+        }
+        return new Stroke(samples, count, shape.getColor(), shape.getWidth());
+    }
+
+    private static float distance(Stroke shape, int from, int to) {
+        return (float) Math.hypot(shape.getOutlineX(to) - shape.getOutlineX(from), shape.getOutlineY(to) - shape.getOutlineY(from));
+    }
+}
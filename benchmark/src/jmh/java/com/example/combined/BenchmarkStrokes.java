@@ -0,0 +1,70 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+import java.util.Random;
+
+/**
+ * Deterministic input for the benchmarks: scribbles fed through StrokeBuilder the same way onTouchEvent does.
+ */
+final class BenchmarkStrokes {
+
+    static final int STROKE_WIDTH = 5;
+    static final int POINTS_PER_STROKE = 48;
+
+    private static final int[] COLORS = {Color.BLACK, Color.RED, Color.GREEN, Color.BLUE};
+
+    private BenchmarkStrokes() {
+    }
+
+    // Raw touch samples (x, y, pressure) for a wandering stroke inside the image
+    static float[] samples(Random random, int width, int height, int pointCount) {
+        float[] samples = new float[pointCount * Stroke.FLOATS_PER_POINT];
+        float x = random.nextFloat() * width;
+        float y = random.nextFloat() * height;
+        float angle = random.nextFloat() * 6.28f;
+        for (int i = 0; i < pointCount; i++) {
+            angle += (random.nextFloat() - 0.5f) * 0.6f;
+            x = Math.max(0, Math.min(width, x + (float) Math.cos(angle) * 6));
+            y = Math.max(0, Math.min(height, y + (float) Math.sin(angle) * 6));
+            samples[i * 3] = x;
+            samples[i * 3 + 1] = y;
+            samples[i * 3 + 2] = 0.5f + random.nextFloat() * 0.5f;
+        }
+        return samples;
+    }
+
+    static Stroke build(StrokeBuilder builder, float[] samples, int pointCount, int color) {
+        builder.begin(samples[0], samples[1], samples[2], STROKE_WIDTH, true);
+        for (int i = 1; i < pointCount - 1; i++) {
+            builder.addPoint(samples[i * 3], samples[i * 3 + 1], samples[i * 3 + 2]);
+        }
+        int last = (pointCount - 1) * 3;
+        return builder.end(samples[last], samples[last + 1], samples[last + 2], color);
+    }
+
+    // A document with the given image size and strokes already committed, as after a drawing session
+    static DrawingDocument document(int width, int height, int strokeCount, long seed) {
+        Random random = new Random(seed);
+        DrawingDocument document = new DrawingDocument(64L * 1024 * 1024);
+        Bitmap image = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        image.eraseColor(Color.WHITE);
+        document.setImage(image);
+
+        StrokeBuilder builder = new StrokeBuilder(2);
+        Rect dirty = new Rect();
+        for (int i = 0; i < strokeCount; i++) {
+            float[] samples = samples(random, width, height, POINTS_PER_STROKE);
+            document.addStroke(build(builder, samples, POINTS_PER_STROKE, COLORS[i % COLORS.length]), dirty);
+        }
+        return document;
+    }
+
+    // Image sizes are given as "WIDTHxHEIGHT"
+    static int[] parseSize(String size) {
+        int separator = size.indexOf('x');
+        return new int[]{Integer.parseInt(size.substring(0, separator)), Integer.parseInt(size.substring(separator + 1))};
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Redraw and compositing cost of DrawingDocument, the rendering core behind DrawOnImageView.
+ */
+@State(Scope.Thread)
+public class DrawingDocumentBenchmark {
+
+    @Param({"1024x768", "2048x1536", "4032x3024"})
+    public String imageSize;
+
+    @Param({"10", "100", "500"})
+    public int strokeCount;
+
+    private DrawingDocument document;
+    private Bitmap target;
+    private Canvas targetCanvas;
+    private final Rect dirty = new Rect();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = BenchmarkStrokes.parseSize(imageSize);
+        document = BenchmarkStrokes.document(size[0], size[1], strokeCount, 42);
+        target = Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+        targetCanvas = new Canvas(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        document.release();
+        BitmapPool.getInstance().clear();
+    }
+
+    // Undo rebuilds the area under the last stroke from the nearest checkpoint; redo draws it back on top
+    @Benchmark
+    public Rect undoRedo() {
+        document.undo(dirty);
+        document.redo(dirty);
+        return dirty;
+    }
+
+    // The work getMergedBitmap does when stale: the image with every drawing tile composited over it
+    @Benchmark
+    public Bitmap composite() {
+        document.drawTo(targetCanvas);
+        return target;
+    }
+}
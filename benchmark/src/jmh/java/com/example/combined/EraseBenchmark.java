@@ -0,0 +1,72 @@
+package com.example.combined;
+
+import android.graphics.Rect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+
+/**
+ * Hit-testing and erasing on documents with thousands of strokes, through the stroke index.
+ */
+@State(Scope.Thread)
+public class EraseBenchmark {
+
+    @Param({"2048x1536"})
+    public String imageSize;
+
+    @Param({"1000", "5000"})
+    public int strokeCount;
+
+    private DrawingDocument document;
+    private Stroke eraser;
+    private float[] taps;
+    private int nextTap;
+    private final Rect dirty = new Rect();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = BenchmarkStrokes.parseSize(imageSize);
+        document = BenchmarkStrokes.document(size[0], size[1], strokeCount, 42);
+        Random random = new Random(3);
+        // A short eraser swipe through the middle of the image
+        float[] samples = BenchmarkStrokes.samples(random, size[0] / 8, size[1] / 8, 16);
+        for (int i = 0; i < 16; i++) {
+            samples[i * 3] += size[0] / 2f;
+            samples[i * 3 + 1] += size[1] / 2f;
+        }
+        eraser = new Stroke(samples, 16, 0, 24).toEraser(false);
+        taps = new float[512];
+        for (int i = 0; i < taps.length; i += 2) {
+            taps[i] = random.nextFloat() * size[0];
+            taps[i + 1] = random.nextFloat() * size[1];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        document.release();
+        BitmapPool.getInstance().clear();
+    }
+
+    // Selecting the stroke under a tap
+    @Benchmark
+    public Stroke hitTest() {
+        nextTap = (nextTap + 2) % taps.length;
+        return document.hitTest(taps[nextTap], taps[nextTap + 1], 24);
+    }
+
+    // Erasing the strokes under a swipe and bringing them back, each redrawing only where they were
+    @Benchmark
+    public Rect eraseUndo() {
+        document.addStroke(eraser, dirty);
+        document.undo(dirty);
+        return dirty;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * JPEG compress of the merged bitmap through a 64KB buffer, as BitmapExporter writes it.
+ *
+ * On the JVM the encoder is ImageIO's rather than Skia's, so absolute numbers differ from a device;
+ * the benchmark is meant for spotting regressions in how much the export has to encode.
+ */
+@State(Scope.Thread)
+public class ExportBenchmark {
+
+    @Param({"1024x768", "2048x1536", "4032x3024"})
+    public String imageSize;
+
+    @Param({"90"})
+    public int quality;
+
+    private DrawingDocument document;
+    private Bitmap merged;
+    private ByteArrayOutputStream output;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = BenchmarkStrokes.parseSize(imageSize);
+        document = BenchmarkStrokes.document(size[0], size[1], 100, 42);
+        merged = document.getMergedBitmap();
+        output = new ByteArrayOutputStream(size[0] * size[1]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        document.release();
+        BitmapPool.getInstance().clear();
+    }
+
+    @Benchmark
+    public int compressJpeg() throws IOException {
+        output.reset();
+        BufferedOutputStream out = new BufferedOutputStream(output, 64 * 1024);
+        if (!merged.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+            throw new IOException("Bitmap.compress failed");
+        }
+        out.flush();
+        return output.size();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.combined;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+
+/**
+ * Frame cost of a multi-layer document while a stroke is drawn on a layer in the middle of the stack.
+ */
+@State(Scope.Thread)
+public class LayerCompositeBenchmark {
+
+    @Param({"2048x1536"})
+    public String imageSize;
+
+    @Param({"1", "4", "8"})
+    public int layerCount;
+
+    private static final int STROKES_PER_LAYER = 50;
+
+    private DrawingDocument document;
+    private StrokeRuns liveRuns;
+    private Bitmap target;
+    private Canvas targetCanvas;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = BenchmarkStrokes.parseSize(imageSize);
+        document = BenchmarkStrokes.document(size[0], size[1], STROKES_PER_LAYER, 42);
+        Random random = new Random(7);
+        StrokeBuilder builder = new StrokeBuilder(2);
+        Rect dirty = new Rect();
+        for (int layer = 1; layer < layerCount; layer++) {
+            document.setActiveLayer(document.addLayer("Layer " + (layer + 1)));
+            for (int i = 0; i < STROKES_PER_LAYER; i++) {
+                float[] samples = BenchmarkStrokes.samples(random, size[0], size[1], BenchmarkStrokes.POINTS_PER_STROKE);
+                document.addStroke(BenchmarkStrokes.build(builder, samples, BenchmarkStrokes.POINTS_PER_STROKE, Color.RED), dirty);
+            }
+        }
+        document.setActiveLayer(layerCount / 2);
+
+        float[] samples = BenchmarkStrokes.samples(random, size[0], size[1], BenchmarkStrokes.POINTS_PER_STROKE);
+        liveRuns = BenchmarkStrokes.build(builder, samples, BenchmarkStrokes.POINTS_PER_STROKE, Color.BLUE).getRuns();
+        target = Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+        targetCanvas = new Canvas(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        document.release();
+        BitmapPool.getInstance().clear();
+    }
+
+    // A frame mid-stroke: the cached composites plus the active layer and the live path
+    @Benchmark
+    public Bitmap cachedFrame() {
+        document.drawTo(targetCanvas, liveRuns, Color.BLUE);
+        return target;
+    }
+
+    // The same frame with every layer composited tile by tile, as without the caches
+    @Benchmark
+    public Bitmap uncachedFrame() {
+        document.drawBelowActive(targetCanvas);
+        document.drawActiveLayer(targetCanvas);
+        liveRuns.draw(targetCanvas, Color.BLUE, PaintCache.getInstance());
+        document.drawAboveActive(targetCanvas);
+        return target;
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.combined;
+
+import android.graphics.Color;
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Touch ingestion as done by DrawOnImageView.onTouchEvent: decimation, smoothing and dirty bounds per sample.
+ */
+@State(Scope.Thread)
+public class StrokeBuilderBenchmark {
+
+    @Param({"16", "128", "1024"})
+    public int pointCount;
+
+    private final StrokeBuilder builder = new StrokeBuilder(2);
+    private final RectF dirtyBounds = new RectF();
+    private float[] samples;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        samples = BenchmarkStrokes.samples(new Random(42), 2048, 1536, pointCount);
+    }
+
+    @Benchmark
+    public Stroke ingest() {
+        builder.begin(samples[0], samples[1], samples[2], BenchmarkStrokes.STROKE_WIDTH, true);
+        for (int i = 1; i < pointCount - 1; i++) {
+            builder.addPoint(samples[i * 3], samples[i * 3 + 1], samples[i * 3 + 2]);
+            builder.takeDirtyBounds(dirtyBounds); // One invalidate per move event
+        }
+        int last = (pointCount - 1) * 3;
+        return builder.end(samples[last], samples[last + 1], samples[last + 2], Color.BLACK);
+    }
+}
@@ -0,0 +1,155 @@
+package android.graphics;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * JVM stand-in for android.graphics.Bitmap backed by a BufferedImage, so the drawing code can be
+ * benchmarked off-device. Every config is stored as 32-bit ARGB but reports the byte count Android would.
+ */
+public final class Bitmap {
+
+    public enum Config {
+        ALPHA_8(1), RGB_565(2), ARGB_4444(2), ARGB_8888(4);
+
+        final int bytesPerPixel;
+
+        Config(int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    public enum CompressFormat {
+        JPEG, PNG, WEBP, WEBP_LOSSY, WEBP_LOSSLESS
+    }
+
+    BufferedImage image;
+    private Config config;
+    private final boolean mutable;
+    private final int allocationByteCount;
+    private boolean recycled;
+
+    private Bitmap(int width, int height, Config config, boolean mutable) {
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.config = config;
+        this.mutable = mutable;
+        this.allocationByteCount = width * height * config.bytesPerPixel;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be > 0");
+        }
+        return new Bitmap(width, height, config, true);
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public boolean isMutable() {
+        return mutable;
+    }
+
+    public boolean isRecycled() {
+        return recycled;
+    }
+
+    public void recycle() {
+        recycled = true;
+    }
+
+    public int getByteCount() {
+        return getWidth() * getHeight() * config.bytesPerPixel;
+    }
+
+    public int getAllocationByteCount() {
+        return allocationByteCount;
+    }
+
+    public void setHasAlpha(boolean hasAlpha) {
+        // Every stand-in bitmap keeps an alpha channel
+    }
+
+    // Like Android, only succeeds when the new size fits in the original allocation
+    public void reconfigure(int width, int height, Config config) {
+        if (!mutable || width * height * config.bytesPerPixel > allocationByteCount) {
+            throw new IllegalArgumentException("Bitmap not large enough to reconfigure");
+        }
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.config = config;
+    }
+
+    public void eraseColor(int color) {
+        Graphics2D g = image.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setColor(new java.awt.Color(color, true));
+        g.fillRect(0, 0, getWidth(), getHeight());
+        g.dispose();
+    }
+
+    public int getPixel(int x, int y) {
+        return image.getRGB(x, y);
+    }
+
+    public Bitmap copy(Config config, boolean isMutable) {
+        Bitmap copy = new Bitmap(getWidth(), getHeight(), config, isMutable);
+        Graphics2D g = copy.image.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    // JPEG and PNG go through ImageIO; WEBP has no JDK encoder and reports failure like an unsupported format
+    public boolean compress(CompressFormat format, int quality, OutputStream stream) {
+        try {
+            if (format == CompressFormat.PNG) {
+                return ImageIO.write(image, "png", stream);
+            }
+            if (format != CompressFormat.JPEG) {
+                return false;
+            }
+            // JPEG has no alpha channel, so flatten onto an RGB image first as Android does
+            BufferedImage rgb = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.drawImage(image, 0, 0, java.awt.Color.BLACK, null);
+            g.dispose();
+
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+            ImageWriter writer = writers.next();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(0, Math.min(100, quality)) / 100f);
+            ImageOutputStream output = ImageIO.createImageOutputStream(stream);
+            try {
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(rgb, null, null), param);
+            } finally {
+                output.close();
+                writer.dispose();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for android.graphics.BitmapFactory; only the decode options used by BitmapPool.
+ */
+public class BitmapFactory {
+
+    public static class Options {
+        public Bitmap inBitmap;
+        public boolean inMutable;
+        public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+        public int inSampleSize;
+        public boolean inJustDecodeBounds;
+        public int inDensity;
+        public int inTargetDensity;
+        public boolean inScaled = true;
+        public int outWidth;
+        public int outHeight;
+    }
+}
@@ -0,0 +1,250 @@
+package android.graphics;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * JVM stand-in for android.graphics.Canvas drawing into a Bitmap through Java2D.
+ *
+ * Covers the operations the drawing core uses: save/restore of translation and clip, paths with
+ * stroke/fill paints, bitmap blits, rectangles and PorterDuff CLEAR, plus the lines, ovals, text and
+ * pictures shapes are drawn with. A Picture's recording canvas only keeps the shape operations.
+ */
+public class Canvas {
+
+    private Bitmap bitmap;
+    private Graphics2D graphics;
+    private final ArrayDeque<State> saved = new ArrayDeque<>();
+    private final List<Picture.Op> recording; // Set for a Picture's recording canvas
+
+    private static class State {
+        final AffineTransform transform;
+        final Shape clip;
+
+        State(AffineTransform transform, Shape clip) {
+            this.transform = transform;
+            this.clip = clip;
+        }
+    }
+
+    public Canvas() {
+        recording = null;
+    }
+
+    public Canvas(Bitmap bitmap) {
+        recording = null;
+        setBitmap(bitmap);
+    }
+
+    Canvas(List<Picture.Op> recording) {
+        this.recording = recording;
+    }
+
+    public void setBitmap(Bitmap bitmap) {
+        if (graphics != null) {
+            graphics.dispose();
+            graphics = null;
+        }
+        saved.clear();
+        this.bitmap = bitmap;
+        if (bitmap != null) {
+            graphics = bitmap.image.createGraphics();
+        }
+    }
+
+    public int getWidth() {
+        return bitmap != null ? bitmap.getWidth() : 0;
+    }
+
+    public int getHeight() {
+        return bitmap != null ? bitmap.getHeight() : 0;
+    }
+
+    public int save() {
+        if (recording != null) {
+            recording.add(new Picture.Op() {
+                @Override
+                public void replay(Canvas canvas) {
+                    canvas.save();
+                }
+            });
+            return 0;
+        }
+        saved.push(new State(graphics.getTransform(), graphics.getClip()));
+        return saved.size();
+    }
+
+    public void restore() {
+        if (recording != null) {
+            recording.add(new Picture.Op() {
+                @Override
+                public void replay(Canvas canvas) {
+                    canvas.restore();
+                }
+            });
+            return;
+        }
+        State state = saved.pop();
+        graphics.setTransform(state.transform);
+        graphics.setClip(state.clip);
+    }
+
+    public void restoreToCount(int count) {
+        while (saved.size() >= count) {
+            restore();
+        }
+    }
+
+    public void translate(final float dx, final float dy) {
+        if (recording != null) {
+            recording.add(new Picture.Op() {
+                @Override
+                public void replay(Canvas canvas) {
+                    canvas.translate(dx, dy);
+                }
+            });
+            return;
+        }
+        graphics.translate(dx, dy);
+    }
+
+    public void scale(final float sx, final float sy) {
+        if (recording != null) {
+            recording.add(new Picture.Op() {
+                @Override
+                public void replay(Canvas canvas) {
+                    canvas.scale(sx, sy);
+                }
+            });
+            return;
+        }
+        graphics.scale(sx, sy);
+    }
+
+    public boolean clipRect(float left, float top, float right, float bottom) {
+        graphics.clip(new Rectangle2D.Float(left, top, right - left, bottom - top));
+        return !graphics.getClipBounds().isEmpty();
+    }
+
+    public boolean clipRect(Rect rect) {
+        return clipRect(rect.left, rect.top, rect.right, rect.bottom);
+    }
+
+    public boolean clipRect(RectF rect) {
+        return clipRect(rect.left, rect.top, rect.right, rect.bottom);
+    }
+
+    public void drawColor(int color) {
+        drawColor(color, PorterDuff.Mode.SRC_OVER);
+    }
+
+    public void drawColor(int color, PorterDuff.Mode mode) {
+        graphics.setComposite(mode == PorterDuff.Mode.CLEAR ? AlphaComposite.Clear
+                : mode == PorterDuff.Mode.SRC ? AlphaComposite.Src : AlphaComposite.SrcOver);
+        graphics.setColor(new java.awt.Color(color, true));
+        // Fill the whole bitmap in device space; the clip limits it to the current region
+        AffineTransform transform = graphics.getTransform();
+        Shape clip = graphics.getClip(); // In user space, so read it before the transform is reset
+        graphics.setTransform(new AffineTransform());
+        if (clip != null) {
+            graphics.setClip(transform.createTransformedShape(clip));
+        }
+        graphics.fillRect(0, 0, getWidth(), getHeight());
+        graphics.setTransform(transform);
+        graphics.setClip(clip);
+        graphics.setComposite(AlphaComposite.SrcOver);
+    }
+
+    public void drawPath(Path path, Paint paint) {
+        drawShape(path.shape, paint);
+    }
+
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+        drawShape(new Rectangle2D.Float(left, top, right - left, bottom - top), paint);
+    }
+
+    public void drawLine(float startX, float startY, float stopX, float stopY, Paint paint) {
+        drawShape(new Line2D.Float(startX, startY, stopX, stopY), paint);
+    }
+
+    public void drawOval(RectF oval, Paint paint) {
+        drawShape(new Ellipse2D.Float(oval.left, oval.top, oval.right - oval.left, oval.bottom - oval.top), paint);
+    }
+
+    public void drawText(final String text, final float x, final float y, Paint paint) {
+        final Paint copy = new Paint(paint);
+        if (recording != null) {
+            recording.add(new Picture.Op() {
+                @Override
+                public void replay(Canvas canvas) {
+                    canvas.drawText(text, x, y, copy);
+                }
+            });
+            return;
+        }
+        graphics.setColor(new java.awt.Color(paint.getColor(), true));
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, paint.isAntiAlias()
+                ? RenderingHints.VALUE_TEXT_ANTIALIAS_ON : RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+        graphics.setFont(paint.getFont());
+        graphics.drawString(text, x, y);
+    }
+
+    public void drawPicture(Picture picture) {
+        picture.draw(this);
+    }
+
+    public void drawRect(RectF rect, Paint paint) {
+        drawRect(rect.left, rect.top, rect.right, rect.bottom, paint);
+    }
+
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+        if (paint != null && paint.getAlpha() < 0xFF) {
+            graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, paint.getAlpha() / 255f));
+        }
+        graphics.drawImage(bitmap.image, AffineTransform.getTranslateInstance(left, top), null);
+        graphics.setComposite(AlphaComposite.SrcOver);
+    }
+
+    private void drawShape(final Shape shape, Paint paint) {
+        if (recording != null) {
+            final Paint copy = new Paint(paint); // Later changes to the paint do not reach the recording
+            recording.add(new Picture.Op() {
+                @Override
+                public void replay(Canvas canvas) {
+                    canvas.drawShape(shape, copy);
+                }
+            });
+            return;
+        }
+        graphics.setColor(new java.awt.Color(paint.getColor(), true));
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, paint.isAntiAlias()
+                ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+        if (paint.getStyle() != Paint.Style.STROKE) {
+            graphics.fill(shape);
+        }
+        if (paint.getStyle() != Paint.Style.FILL) {
+            graphics.setStroke(new BasicStroke(Math.max(paint.getStrokeWidth(), 1f),
+                    toAwtCap(paint.getStrokeCap()), toAwtJoin(paint.getStrokeJoin())));
+            graphics.draw(shape);
+        }
+    }
+
+    private static int toAwtCap(Paint.Cap cap) {
+        return cap == Paint.Cap.ROUND ? BasicStroke.CAP_ROUND
+                : cap == Paint.Cap.SQUARE ? BasicStroke.CAP_SQUARE : BasicStroke.CAP_BUTT;
+    }
+
+    private static int toAwtJoin(Paint.Join join) {
+        return join == Paint.Join.ROUND ? BasicStroke.JOIN_ROUND
+                : join == Paint.Join.BEVEL ? BasicStroke.JOIN_BEVEL : BasicStroke.JOIN_MITER;
+    }
+}
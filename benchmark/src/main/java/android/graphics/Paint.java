@@ -0,0 +1,140 @@
+package android.graphics;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+
+/**
+ * JVM stand-in for android.graphics.Paint.
+ */
+public class Paint {
+
+    public static final int ANTI_ALIAS_FLAG = 1;
+    public static final int FILTER_BITMAP_FLAG = 2;
+
+    public enum Style {
+        FILL, STROKE, FILL_AND_STROKE
+    }
+
+    public enum Cap {
+        BUTT, ROUND, SQUARE
+    }
+
+    public enum Join {
+        MITER, ROUND, BEVEL
+    }
+
+    private int color = Color.BLACK;
+    private float strokeWidth;
+    private Style style = Style.FILL;
+    private Cap strokeCap = Cap.BUTT;
+    private Join strokeJoin = Join.MITER;
+    private boolean antiAlias;
+    private Xfermode xfermode; // Recorded only; bitmaps are always drawn with SRC_OVER
+    private float textSize = 12;
+
+    private static final Font BASE_FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 1);
+    private static final FontRenderContext FONT_CONTEXT = new FontRenderContext(null, true, true);
+
+    public Paint() {
+    }
+
+    public Paint(int flags) {
+        antiAlias = (flags & ANTI_ALIAS_FLAG) != 0;
+    }
+
+    public Paint(Paint paint) {
+        set(paint);
+    }
+
+    public void set(Paint paint) {
+        color = paint.color;
+        strokeWidth = paint.strokeWidth;
+        style = paint.style;
+        strokeCap = paint.strokeCap;
+        strokeJoin = paint.strokeJoin;
+        antiAlias = paint.antiAlias;
+        xfermode = paint.xfermode;
+        textSize = paint.textSize;
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    public void setColor(int color) {
+        this.color = color;
+    }
+
+    public int getAlpha() {
+        return color >>> 24;
+    }
+
+    public void setAlpha(int alpha) {
+        color = (color & 0x00FFFFFF) | (alpha << 24);
+    }
+
+    public float getStrokeWidth() {
+        return strokeWidth;
+    }
+
+    public void setStrokeWidth(float strokeWidth) {
+        this.strokeWidth = strokeWidth;
+    }
+
+    public Style getStyle() {
+        return style;
+    }
+
+    public void setStyle(Style style) {
+        this.style = style;
+    }
+
+    public Cap getStrokeCap() {
+        return strokeCap;
+    }
+
+    public void setStrokeCap(Cap strokeCap) {
+        this.strokeCap = strokeCap;
+    }
+
+    public Join getStrokeJoin() {
+        return strokeJoin;
+    }
+
+    public void setStrokeJoin(Join strokeJoin) {
+        this.strokeJoin = strokeJoin;
+    }
+
+    public boolean isAntiAlias() {
+        return antiAlias;
+    }
+
+    public void setAntiAlias(boolean antiAlias) {
+        this.antiAlias = antiAlias;
+    }
+
+    public float getTextSize() {
+        return textSize;
+    }
+
+    public void setTextSize(float textSize) {
+        this.textSize = textSize;
+    }
+
+    public float measureText(String text) {
+        return (float) getFont().getStringBounds(text, FONT_CONTEXT).getWidth();
+    }
+
+    Font getFont() {
+        return BASE_FONT.deriveFont(textSize);
+    }
+
+    public Xfermode getXfermode() {
+        return xfermode;
+    }
+
+    public Xfermode setXfermode(Xfermode xfermode) {
+        this.xfermode = xfermode;
+        return xfermode;
+    }
+}
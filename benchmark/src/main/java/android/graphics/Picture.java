@@ -0,0 +1,49 @@
+package android.graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JVM stand-in for android.graphics.Picture: the recording canvas keeps the calls made on it, and drawing
+ * the picture makes them again on the target canvas.
+ */
+public class Picture {
+
+    // One recorded call, made again on the canvas the picture is drawn on
+    interface Op {
+        void replay(Canvas canvas);
+    }
+
+    private final List<Op> ops = new ArrayList<>();
+    private int width;
+    private int height;
+    private Canvas recordingCanvas;
+
+    public Canvas beginRecording(int width, int height) {
+        this.width = width;
+        this.height = height;
+        ops.clear();
+        recordingCanvas = new Canvas(ops);
+        return recordingCanvas;
+    }
+
+    public void endRecording() {
+        recordingCanvas = null;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void draw(Canvas canvas) {
+        int count = canvas.save();
+        for (Op op : ops) {
+            op.replay(canvas);
+        }
+        canvas.restoreToCount(count);
+    }
+}
@@ -0,0 +1,17 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for android.graphics.PorterDuffXfermode.
+ */
+public class PorterDuffXfermode extends Xfermode {
+
+    private final PorterDuff.Mode mode;
+
+    public PorterDuffXfermode(PorterDuff.Mode mode) {
+        this.mode = mode;
+    }
+
+    public PorterDuff.Mode getMode() {
+        return mode;
+    }
+}
@@ -0,0 +1,7 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for android.graphics.Xfermode.
+ */
+public class Xfermode {
+}